@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+
+/**
+ * 多数のファイルの OBB 情報を並行して読み取り、1 ファイルにつき 1 行の JSON (NDJSON) として出力します。
+ * <p>
+ * 同時に読み取り中となるファイルの数は {@code maxInFlight} で制限され、{@link #submit(File)} は
+ * 空きができるまで待機します。そのため対象ファイルの数に関わらず使用メモリはほぼ一定です。
+ * 結果は読み取りが完了した順に出力されます。
+ */
+public class CatalogScanner {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    private final Writer out_;
+
+    private final Semaphore inFlight_;
+
+    private final ExecutorService executor_;
+
+    private final AtomicInteger submittedCount_ = new AtomicInteger();
+
+    private final AtomicInteger failedCount_ = new AtomicInteger();
+
+    private final AtomicReference<IOException> writeError_ = new AtomicReference<IOException>();
+
+    /**
+     * @param maxInFlight 同時に読み取るファイル数の上限。正数であること。
+     * @param out 結果の出力先。各行は {@code out} 自身をロックした状態で書き込まれます。
+     *            バッファリングされた {@link Writer} を渡してください。
+     */
+    public CatalogScanner(int maxInFlight, Writer out) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("'maxInFlight' must be positive number.");
+        }
+        out_ = out;
+        inFlight_ = new Semaphore(maxInFlight);
+        executor_ = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            private final AtomicInteger threadCount_ = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "scan-" + threadCount_.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * ファイルの読み取りを開始します。同時に読み取り中のファイル数が上限に達している場合は、空きができるまで待機します。
+     *
+     * @param file 対象ファイル。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public void submit(final File file) throws InterruptedException {
+        inFlight_.acquire();
+        submittedCount_.incrementAndGet();
+        try {
+            executor_.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(scanOne(file));
+                    } finally {
+                        inFlight_.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight_.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 読み取り中のファイルがすべて完了するのを待ち、出力先をフラッシュします。このメソッドの呼び出し後は
+     * {@link #submit(File)} を呼び出すことはできません。
+     *
+     * @return OBB 情報を取得できなかったファイルの数。
+     * @throws IOException 結果の出力に失敗した場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public int finish() throws IOException, InterruptedException {
+        executor_.shutdown();
+        while (!executor_.awaitTermination(1, TimeUnit.SECONDS)) {
+            // 全タスクの完了を待つ
+        }
+        synchronized (out_) {
+            out_.flush();
+        }
+        final IOException writeError = writeError_.get();
+        if (writeError != null) {
+            throw writeError;
+        }
+        return failedCount_.get();
+    }
+
+    public int getSubmittedCount() {
+        return submittedCount_.get();
+    }
+
+    private String scanOne(File file) {
+        final StringBuilder line = new StringBuilder(128);
+        line.append("{\"path\":");
+        appendJsonString(line, file.getPath());
+        try {
+            final RandomAccessFile obb = new RandomAccessFile(file, "r");
+            final ObbInfo info;
+            try {
+                info = FooterCodecRegistry.getDefault().read(obb.getChannel());
+            } finally {
+                obb.close();
+            }
+            line.append(",\"package\":");
+            appendJsonString(line, info.getPackageName());
+            line.append(",\"version\":").append(info.getPackageVersion());
+            line.append(",\"flags\":").append(info.getFlags());
+            line.append(",\"salt\":\"").append(CommandLineUtil.toHexString(info.getSalt()));
+            line.append("\",\"error\":null}\n");
+        } catch (FileNotFoundException e) {
+            appendError(line, "cannot open");
+        } catch (IOException e) {
+            appendError(line, e.getMessage() == null ? "read error" : "read error: "
+                    + e.getMessage());
+        } catch (NotObbException e) {
+            appendError(line, e.getMessage());
+        }
+        return line.toString();
+    }
+
+    private void appendError(StringBuilder line, String message) {
+        failedCount_.incrementAndGet();
+        line.append(",\"package\":null,\"version\":null,\"flags\":null,\"salt\":null,\"error\":");
+        appendJsonString(line, message);
+        line.append("}\n");
+    }
+
+    private void write(String line) {
+        if (writeError_.get() != null) {
+            return;
+        }
+        try {
+            synchronized (out_) {
+                out_.write(line);
+            }
+        } catch (IOException e) {
+            writeError_.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * 文字列を JSON の文字列リテラルとして追加します。
+     */
+    static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int index = 0; index < value.length(); index++) {
+            final char c = value.charAt(index);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        final String hex = Integer.toHexString(c);
+                        sb.append("\\u");
+                        for (int pad = hex.length(); pad < 4; pad++) {
+                            sb.append('0');
+                        }
+                        sb.append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.andeb.obbutil.FileLocker.LockUnavailableException;
+
+/**
+ * OBB ファイルを内容に基づくチャンクに分割し、重複を除いて保存するストアです。
+ * <p>
+ * ストアはディレクトリで、以下のファイルから構成されます。
+ * <ul>
+ * <li>{@value #PACK_FILE_NAME}: 重複を除いたチャンクのデータを追記していくファイル。</li>
+ * <li>{@value #INDEX_FILE_NAME}: チャンクごとに SHA-256 (32 バイト)、pack 中の位置 (8 バイト)、
+ * 長さ (4 バイト) を並べた固定長レコードのファイル。レコードの並び順がチャンク番号になります。</li>
+ * <li>{@value #RECIPE_DIR_NAME}/&lt;名前&gt;: 保存したファイルごとに、元のサイズとチャンク番号の列を記録したファイル。</li>
+ * </ul>
+ * ファイルはセグメント単位に分けて複数のスレッドでチャンク分割とハッシュ計算を行います。セグメントの境界は
+ * 常にチャンクの境界になります。
+ * <p>
+ * 開いている間は {@value #PACK_FILE_NAME} の排他ロックを保持するため、1 つのストアを複数のプロセスから
+ * 同時に開くことはできません。
+ */
+public class ChunkStore {
+
+    static final String PACK_FILE_NAME = "chunks.pack";
+
+    static final String INDEX_FILE_NAME = "chunks.idx";
+
+    static final String RECIPE_DIR_NAME = "recipes";
+
+    private static final int HASH_SIZE = 32;
+
+    private static final int INDEX_RECORD_SIZE = HASH_SIZE + 8 + 4;
+
+    private static final int RECIPE_MAGIC = 0x4f425252; // "OBRR"
+
+    private static final int RECIPE_VERSION = 1;
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int RESTORE_BATCH_SIZE = 256;
+
+    /**
+     * 保存または復元の結果です。
+     */
+    public static final class TransferStats {
+        private final long bytes_;
+
+        private final long newBytes_;
+
+        private final int chunkCount_;
+
+        private final int newChunkCount_;
+
+        private final long nanos_;
+
+        TransferStats(long bytes, long newBytes, int chunkCount, int newChunkCount, long nanos) {
+            bytes_ = bytes;
+            newBytes_ = newBytes;
+            chunkCount_ = chunkCount;
+            newChunkCount_ = newChunkCount;
+            nanos_ = nanos;
+        }
+
+        public long getBytes() {
+            return bytes_;
+        }
+
+        /** 新たにストアに追加されたバイト数。復元の場合は常に {@code 0}。 */
+        public long getNewBytes() {
+            return newBytes_;
+        }
+
+        public int getChunkCount() {
+            return chunkCount_;
+        }
+
+        /** 新たにストアに追加されたチャンク数。復元の場合は常に {@code 0}。 */
+        public int getNewChunkCount() {
+            return newChunkCount_;
+        }
+
+        public long getNanos() {
+            return nanos_;
+        }
+
+        /** 処理速度 (MB/秒)。 */
+        public double getMegabytesPerSecond() {
+            return (nanos_ == 0) ? 0 : bytes_ * 1000000000.0 / nanos_ / (1024 * 1024);
+        }
+    }
+
+    private final File dir_;
+
+    private final RandomAccessFile pack_;
+
+    private final FileLock lock_;
+
+    private final DataOutputStream index_;
+
+    private final ContentChunker chunker_;
+
+    private final Map<ByteBuffer, Integer> ordinals_ = new HashMap<ByteBuffer, Integer>();
+
+    private byte[] hashes_ = new byte[HASH_SIZE * 1024];
+
+    private long[] offsets_ = new long[1024];
+
+    private int[] lengths_ = new int[1024];
+
+    private int chunkCount_;
+
+    private long packSize_;
+
+    /**
+     * ストアを開きます。ディレクトリが存在しない場合は作成します。使用後は {@link #close()} で閉じること。
+     *
+     * @param dir ストアのディレクトリ。
+     * @throws LockUnavailableException 他のプロセスまたは同じプロセス内の別の {@link ChunkStore} が
+     *             ストアを開いている場合。
+     * @throws IOException ストアの読み込みに失敗した場合。
+     */
+    public ChunkStore(File dir) throws IOException {
+        this(dir, new ContentChunker());
+    }
+
+    ChunkStore(File dir, ContentChunker chunker) throws IOException {
+        dir_ = dir;
+        chunker_ = chunker;
+        final File recipeDir = new File(dir, RECIPE_DIR_NAME);
+        if (!recipeDir.isDirectory() && !recipeDir.mkdirs()) {
+            throw new IOException("failed to create " + recipeDir.getPath());
+        }
+        pack_ = new RandomAccessFile(new File(dir, PACK_FILE_NAME), "rw");
+        try {
+            // 古い packSize_ の位置に追記して互いのチャンクを上書きしないよう、閉じるまでロックを保持する
+            FileLock lock;
+            try {
+                lock = pack_.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new LockUnavailableException("chunk store is in use: " + dir.getPath());
+            }
+            lock_ = lock;
+            packSize_ = pack_.length();
+            final File indexFile = new File(dir, INDEX_FILE_NAME);
+            final long validIndexSize = loadIndex(indexFile);
+            // 書き込み途中で中断されたレコードを取り除く
+            final RandomAccessFile indexRaFile = new RandomAccessFile(indexFile, "rw");
+            try {
+                indexRaFile.setLength(validIndexSize);
+            } finally {
+                indexRaFile.close();
+            }
+            index_ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    indexFile, true)));
+        } catch (IOException e) {
+            pack_.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                index_.close();
+            }
+        } finally {
+            try {
+                lock_.release();
+            } finally {
+                pack_.close();
+            }
+        }
+    }
+
+    /**
+     * ファイルをストアに保存します。同じ名前のファイルが既に保存されている場合は置き換えます。
+     *
+     * @param source 保存するファイル。
+     * @param name ストア中での名前。
+     * @param threads チャンク分割とハッシュ計算に使用するスレッド数。正数であること。
+     * @return 保存の結果。
+     * @throws IOException 読み書きに失敗した場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public TransferStats store(File source, String name, int threads) throws IOException,
+            InterruptedException {
+        final File recipeFile = recipeFile(name);
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final long start = System.nanoTime();
+        final int chunkCountBefore;
+        final long packSizeBefore;
+        synchronized (this) {
+            chunkCountBefore = chunkCount_;
+            packSizeBefore = packSize_;
+        }
+
+        final RandomAccessFile sourceRaFile = new RandomAccessFile(source, "r");
+        final long size;
+        final List<int[]> segments = new ArrayList<int[]>();
+        try {
+            final FileChannel channel = sourceRaFile.getChannel();
+            size = channel.size();
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+                for (long offset = 0; offset < size; offset += SEGMENT_SIZE) {
+                    final long segmentOffset = offset;
+                    final int segmentSize = (int) Math.min(SEGMENT_SIZE, size - offset);
+                    futures.add(executor.submit(new Callable<int[]>() {
+                        @Override
+                        public int[] call() throws IOException {
+                            return storeSegment(channel, segmentOffset, segmentSize);
+                        }
+                    }));
+                }
+                for (Future<int[]> future : futures) {
+                    segments.add(getResult(future));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            sourceRaFile.close();
+        }
+
+        int chunkCount = 0;
+        for (int[] segment : segments) {
+            chunkCount += segment.length;
+        }
+        synchronized (this) {
+            // レシピより先にインデックスを書き出しておく
+            index_.flush();
+        }
+        final File tmpFile = new File(recipeFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(RECIPE_MAGIC);
+            out.writeInt(RECIPE_VERSION);
+            out.writeLong(size);
+            out.writeInt(chunkCount);
+            for (int[] segment : segments) {
+                for (int ordinal : segment) {
+                    out.writeInt(ordinal);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(recipeFile)) {
+            if (!recipeFile.delete() || !tmpFile.renameTo(recipeFile)) {
+                tmpFile.delete();
+                throw new IOException("failed to write " + recipeFile.getPath());
+            }
+        }
+
+        synchronized (this) {
+            return new TransferStats(size, packSize_ - packSizeBefore, chunkCount, chunkCount_
+                    - chunkCountBefore, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 保存されたファイルを復元します。各チャンクは SHA-256 で検証されます。
+     * 失敗した場合は、書きかけの出力先ファイルを削除します。
+     *
+     * @param name ストア中での名前。
+     * @param output 出力先ファイル。既に存在する場合は上書きします。
+     * @param threads チャンクの読み込みと検証に使用するスレッド数。正数であること。
+     * @return 復元の結果。
+     * @throws IOException 読み書きに失敗した場合、または保存されたデータが壊れている場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public TransferStats restore(String name, File output, int threads) throws IOException,
+            InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final long start = System.nanoTime();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(recipeFile(name))));
+        final long size;
+        final int[] ordinals;
+        try {
+            size = readRecipeHeader(in);
+            ordinals = new int[in.readInt()];
+            for (int index = 0; index < ordinals.length; index++) {
+                ordinals[index] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+
+        final long[] outputOffsets = new long[ordinals.length];
+        long total = 0;
+        synchronized (this) {
+            for (int index = 0; index < ordinals.length; index++) {
+                if (ordinals[index] < 0 || chunkCount_ <= ordinals[index]) {
+                    throw new IOException("unknown chunk: " + ordinals[index]);
+                }
+                outputOffsets[index] = total;
+                total += lengths_[ordinals[index]];
+            }
+        }
+        if (total != size) {
+            throw new IOException("broken recipe: " + name);
+        }
+
+        boolean succeeded = false;
+        final RandomAccessFile outputRaFile = new RandomAccessFile(output, "rw");
+        try {
+            outputRaFile.setLength(size);
+            final FileChannel outputChannel = outputRaFile.getChannel();
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int batch = 0; batch < ordinals.length; batch += RESTORE_BATCH_SIZE) {
+                    final int from = batch;
+                    final int to = Math.min(ordinals.length, batch + RESTORE_BATCH_SIZE);
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            restoreChunks(ordinals, outputOffsets, from, to, outputChannel);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    getResult(future);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            succeeded = true;
+        } finally {
+            outputRaFile.close();
+            if (!succeeded) {
+                output.delete();
+            }
+        }
+        return new TransferStats(size, 0, ordinals.length, 0, System.nanoTime() - start);
+    }
+
+    /**
+     * 保存されたファイルの元のサイズの合計を求めます。
+     */
+    public long getLogicalSize() throws IOException {
+        long total = 0;
+        final File[] recipes = new File(dir_, RECIPE_DIR_NAME).listFiles();
+        if (recipes == null) {
+            return 0;
+        }
+        for (File recipe : recipes) {
+            if (recipe.getName().endsWith(".tmp")) {
+                continue;
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(recipe)));
+            try {
+                total += readRecipeHeader(in);
+            } finally {
+                in.close();
+            }
+        }
+        return total;
+    }
+
+    /** ストアに保存されているチャンクデータの合計バイト数。 */
+    public synchronized long getStoredSize() {
+        return packSize_;
+    }
+
+    public synchronized int getChunkCount() {
+        return chunkCount_;
+    }
+
+    /**
+     * 重複排除率 (保存されたファイルの元のサイズの合計 / チャンクデータの合計) を求めます。
+     */
+    public double getDedupRatio() throws IOException {
+        final long stored = getStoredSize();
+        return (stored == 0) ? 1.0 : (double) getLogicalSize() / stored;
+    }
+
+    private int[] storeSegment(FileChannel source, long offset, int size) throws IOException {
+        final MappedByteBuffer segment = source.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[chunker_.getMaxSize()];
+        int[] ordinals = new int[Math.max(16, size / ContentChunker.DEFAULT_AVERAGE_SIZE * 2)];
+        int count = 0;
+        int chunkStart = 0;
+        while (chunkStart < size) {
+            final int chunkEnd = chunker_.nextBoundary(segment, chunkStart, size);
+            final int length = chunkEnd - chunkStart;
+            segment.position(chunkStart);
+            segment.get(buffer, 0, length);
+            digest.update(buffer, 0, length);
+            if (count == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, count * 2);
+            }
+            ordinals[count++] = putChunk(digest.digest(), buffer, length);
+            chunkStart = chunkEnd;
+        }
+        return Arrays.copyOf(ordinals, count);
+    }
+
+    private synchronized int putChunk(byte[] hash, byte[] data, int length) throws IOException {
+        final ByteBuffer key = ByteBuffer.wrap(hash);
+        final Integer existing = ordinals_.get(key);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        final ByteBuffer src = ByteBuffer.wrap(data, 0, length);
+        long position = packSize_;
+        while (src.hasRemaining()) {
+            position += pack_.getChannel().write(src, position);
+        }
+        index_.write(hash);
+        index_.writeLong(packSize_);
+        index_.writeInt(length);
+        final int ordinal = addEntry(hash, packSize_, length);
+        packSize_ += length;
+        return ordinal;
+    }
+
+    private void restoreChunks(int[] ordinals, long[] outputOffsets, int from, int to,
+            FileChannel output) throws IOException {
+        final MessageDigest digest = newDigest();
+        final FileChannel pack = pack_.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(chunker_.getMaxSize());
+        final byte[] expected = new byte[HASH_SIZE];
+        for (int index = from; index < to; index++) {
+            final int ordinal = ordinals[index];
+            final long offset;
+            final int length;
+            synchronized (this) {
+                offset = offsets_[ordinal];
+                length = lengths_[ordinal];
+                System.arraycopy(hashes_, ordinal * HASH_SIZE, expected, 0, HASH_SIZE);
+            }
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (pack.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("chunk data is truncated: " + ordinal);
+                }
+            }
+            digest.update(buffer.array(), 0, length);
+            if (!Arrays.equals(expected, digest.digest())) {
+                throw new IOException("chunk data is broken: " + ordinal);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                output.write(buffer, outputOffsets[index] + buffer.position());
+            }
+        }
+    }
+
+    /**
+     * インデックスファイルを読み込みます。
+     *
+     * @return 有効なレコードが占めるバイト数。
+     */
+    private long loadIndex(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            final long recordCount = indexFile.length() / INDEX_RECORD_SIZE;
+            for (long record = 0; record < recordCount; record++) {
+                final byte[] hash = new byte[HASH_SIZE];
+                in.readFully(hash);
+                final long offset = in.readLong();
+                final int length = in.readInt();
+                if (packSize_ < offset + length) {
+                    // pack に書き込まれる前に中断されたチャンク
+                    break;
+                }
+                addEntry(hash, offset, length);
+            }
+        } finally {
+            in.close();
+        }
+        return (long) chunkCount_ * INDEX_RECORD_SIZE;
+    }
+
+    private int addEntry(byte[] hash, long offset, int length) {
+        if (chunkCount_ == lengths_.length) {
+            final int newCapacity = chunkCount_ * 2;
+            hashes_ = Arrays.copyOf(hashes_, newCapacity * HASH_SIZE);
+            offsets_ = Arrays.copyOf(offsets_, newCapacity);
+            lengths_ = Arrays.copyOf(lengths_, newCapacity);
+        }
+        final int ordinal = chunkCount_++;
+        System.arraycopy(hash, 0, hashes_, ordinal * HASH_SIZE, HASH_SIZE);
+        offsets_[ordinal] = offset;
+        lengths_[ordinal] = length;
+        ordinals_.put(ByteBuffer.wrap(hash), Integer.valueOf(ordinal));
+        return ordinal;
+    }
+
+    private File recipeFile(String name) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0
+                || name.startsWith(".")) {
+            throw new IllegalArgumentException("invalid name: " + name);
+        }
+        return new File(new File(dir_, RECIPE_DIR_NAME), name);
+    }
+
+    private static long readRecipeHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != RECIPE_MAGIC || in.readInt() != RECIPE_VERSION) {
+            throw new IOException("unsupported recipe format");
+        }
+        return in.readLong();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
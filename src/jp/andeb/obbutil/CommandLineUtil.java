@@ -30,6 +30,39 @@ public class CommandLineUtil {
 
     static final Options OPTIONS_FOR_ADD;
 
+    // args for add, remove and repair
+    static final Option LOCK_POLICY;
+
+    static final Options OPTIONS_FOR_REMOVE;
+
+    // args for scan
+    static final Option JOBS;
+    static final Option LIST_FILE;
+
+    static final Options OPTIONS_FOR_SCAN;
+
+    // args for repair
+    static final Option WINDOW_SIZE;
+    static final Option STRIP;
+
+    static final Options OPTIONS_FOR_REPAIR;
+
+    // args for split and join
+    static final Option PART_SIZE;
+    static final Option OUTPUT;
+
+    static final Options OPTIONS_FOR_SPLIT;
+    static final Options OPTIONS_FOR_JOIN;
+
+    // args for archive and restore
+    static final Option STORE_DIR;
+
+    static final Options OPTIONS_FOR_ARCHIVE;
+    static final Options OPTIONS_FOR_RESTORE;
+
+    // args for diff
+    static final Options OPTIONS_FOR_DIFF;
+
     static {
         OPTIONS_FOR_ADD = new Options();
 
@@ -61,6 +94,86 @@ public class CommandLineUtil {
         OptionBuilder.withLongOpt("salt");
         SALT = OptionBuilder.create('s');
         OPTIONS_FOR_ADD.addOption(SALT);
+
+        OPTIONS_FOR_REMOVE = new Options();
+
+        OptionBuilder.withArgName("wait|fail");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("他の処理が対象ファイルを変更中の場合の動作");
+        OptionBuilder.withLongOpt("lock");
+        LOCK_POLICY = OptionBuilder.create('l');
+        OPTIONS_FOR_ADD.addOption(LOCK_POLICY);
+        OPTIONS_FOR_REMOVE.addOption(LOCK_POLICY);
+
+        OPTIONS_FOR_SCAN = new Options();
+
+        OptionBuilder.withArgName("count");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("同時に読み取るファイル数");
+        OptionBuilder.withLongOpt("jobs");
+        JOBS = OptionBuilder.create('j');
+        OPTIONS_FOR_SCAN.addOption(JOBS);
+
+        OptionBuilder.withArgName("list file");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("対象ファイルの一覧");
+        OptionBuilder.withLongOpt("list");
+        LIST_FILE = OptionBuilder.create('f');
+        OPTIONS_FOR_SCAN.addOption(LIST_FILE);
+
+        OPTIONS_FOR_REPAIR = new Options();
+
+        OptionBuilder.withArgName("MB");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("検索するファイル末尾のサイズ(MB)");
+        OptionBuilder.withLongOpt("window");
+        WINDOW_SIZE = OptionBuilder.create('m');
+        OPTIONS_FOR_REPAIR.addOption(WINDOW_SIZE);
+
+        OptionBuilder.withArgName("strip flag");
+        OptionBuilder.withDescription("余分な OBB 情報と不完全なデータを削除");
+        OptionBuilder.withLongOpt("strip");
+        STRIP = OptionBuilder.create('s');
+        OPTIONS_FOR_REPAIR.addOption(STRIP);
+        OPTIONS_FOR_REPAIR.addOption(LOCK_POLICY);
+
+        OPTIONS_FOR_SPLIT = new Options();
+
+        OptionBuilder.withArgName("part size");
+        OptionBuilder.isRequired();
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("1 パートあたりの最大サイズ");
+        OptionBuilder.withLongOpt("bytes");
+        PART_SIZE = OptionBuilder.create('b');
+        OPTIONS_FOR_SPLIT.addOption(PART_SIZE);
+        OPTIONS_FOR_SPLIT.addOption(JOBS);
+
+        OPTIONS_FOR_JOIN = new Options();
+
+        OptionBuilder.withArgName("output file");
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("出力先ファイル");
+        OptionBuilder.withLongOpt("output");
+        OUTPUT = OptionBuilder.create('o');
+        OPTIONS_FOR_JOIN.addOption(OUTPUT);
+        OPTIONS_FOR_JOIN.addOption(JOBS);
+
+        OPTIONS_FOR_ARCHIVE = new Options();
+        OPTIONS_FOR_RESTORE = new Options();
+
+        OptionBuilder.withArgName("store directory");
+        OptionBuilder.isRequired();
+        OptionBuilder.hasArg();
+        OptionBuilder.withDescription("チャンクストアのディレクトリ");
+        OptionBuilder.withLongOpt("dir");
+        STORE_DIR = OptionBuilder.create('d');
+        OPTIONS_FOR_ARCHIVE.addOption(STORE_DIR);
+        OPTIONS_FOR_ARCHIVE.addOption(JOBS);
+        OPTIONS_FOR_RESTORE.addOption(STORE_DIR);
+        OPTIONS_FOR_RESTORE.addOption(JOBS);
+
+        OPTIONS_FOR_DIFF = new Options();
+        OPTIONS_FOR_DIFF.addOption(JOBS);
     }
 
     static void printUsage(String progName) {
@@ -74,15 +187,77 @@ public class CommandLineUtil {
         System.err.println("     -v <package version>   パッケージバージョン(必須)");
         System.err.println("     -o                     OBB オーバーレイフラグをセット");
         System.err.println("     -s <8 byte hex salt>   暗号化で使用しているソルト(例: 00FF3256F9890092)");
+        System.err.println("     -l <wait|fail>         他の処理が対象ファイルを変更中の場合に待つか、失敗するか(省略時: wait)");
         System.err.println();
-        System.err.println(" " + progName + " r[emove] 対象ファイル");
+        System.err.println(" " + progName + " r[emove] [ オプション ] 対象ファイル");
         System.err.println("   OBB 情報をファイルから削除します。");
+        System.err.println("   オプション:");
+        System.err.println("     -l <wait|fail>         他の処理が対象ファイルを変更中の場合に待つか、失敗するか(省略時: wait)");
         System.err.println();
         System.err.println(" " + progName + " i[nfo] 対象ファイル");
         System.err.println("   ファイルの OBB 情報を表示します。");
         System.err.println();
+        System.err.println(" " + progName + " s[can] [ オプション ] [ 対象ファイル... ]");
+        System.err.println("   複数ファイルの OBB 情報を並行して読み取り、1 ファイル 1 行の JSON で出力します。");
+        System.err.println("   オプション:");
+        System.err.println("     -j <count>             同時に読み取るファイル数(省略時: "
+                + CatalogScanner.DEFAULT_MAX_IN_FLIGHT + ")");
+        System.err.println("     -f <list file>         対象ファイルを 1 行に 1 つ記述した一覧(- で標準入力)");
+        System.err.println();
+        System.err.println(" " + progName + " rep[air] [ オプション ] 対象ファイル");
+        System.err.println("   ファイル末尾から OBB 情報を検索し、見つかったすべての OBB 情報を位置とともに表示します。");
+        System.err.println("   オプション:");
+        System.err.println("     -m <MB>                検索するファイル末尾のサイズ(省略時: "
+                + FooterScanner.DEFAULT_WINDOW_MB + ")");
+        System.err.println("     -s                     余分な OBB 情報と末尾の不完全なデータを削除");
+        System.err.println("     -l <wait|fail>         他の処理が対象ファイルを変更中の場合に待つか、失敗するか(省略時: wait)");
+        System.err.println();
+        System.err.println(" " + progName + " sp[lit] [ オプション ] 対象ファイル");
+        System.err.println("   ファイルを固定サイズのパートに分割し、各パートの SHA-256 を記載した");
+        System.err.println("   マニフェスト(対象ファイル" + VolumeSplitter.MANIFEST_SUFFIX + ")を作成します。");
+        System.err.println("   オプション:");
+        System.err.println("     -b <size>              1 パートあたりの最大サイズ(必須, 例: 100M, 2G, パート数は "
+                + VolumeSplitter.MAX_PART_COUNT + " まで)");
+        System.err.println("     -j <count>             同時に書き込むパート数(省略時: "
+                + DEFAULT_THREADS + ")");
+        System.err.println();
+        System.err.println(" " + progName + " j[oin] [ オプション ] マニフェストファイル");
+        System.err.println("   パートを検証して結合し、結合後のファイルの OBB 情報を確認します。");
+        System.err.println("   オプション:");
+        System.err.println("     -o <output file>       出力先ファイル(省略時: マニフェストファイル名から "
+                + VolumeSplitter.MANIFEST_SUFFIX + " を除いたもの,");
+        System.err.println("                            既に存在する場合はエラー)");
+        System.err.println("     -j <count>             同時に検証するパート数(省略時: "
+                + DEFAULT_THREADS + ")");
+        System.err.println();
+        System.err.println(" " + progName + " ar[chive] [ オプション ] [ 対象ファイル... ]");
+        System.err.println("   ファイルをチャンクに分割し、重複を除いてチャンクストアに保存します。");
+        System.err.println("   ストア中ではファイル名(ディレクトリを除く)で識別します。");
+        System.err.println("   対象ファイルを省略した場合はストアの統計情報のみを表示します。");
+        System.err.println("   同じチャンクストアを複数の処理から同時に使用することはできません。");
+        System.err.println("   オプション:");
+        System.err.println("     -d <store directory>   チャンクストアのディレクトリ(必須)");
+        System.err.println("     -j <count>             チャンク分割に使用するスレッド数(省略時: "
+                + DEFAULT_THREADS + ")");
+        System.err.println();
+        System.err.println(" " + progName + " res[tore] [ オプション ] 名前 出力先ファイル");
+        System.err.println("   チャンクストアに保存したファイルを復元し、OBB 情報を確認します。");
+        System.err.println("   オプション:");
+        System.err.println("     -d <store directory>   チャンクストアのディレクトリ(必須)");
+        System.err.println("     -j <count>             チャンクの検証に使用するスレッド数(省略時: "
+                + DEFAULT_THREADS + ")");
+        System.err.println();
+        System.err.println(" " + progName + " d[iff] [ オプション ] ベースファイル オーバーレイファイル");
+        System.err.println("   オーバーレイ OBB がベース OBB のどのファイルを置き換え、追加し、");
+        System.err.println("   あるいは同じ内容で重複して保持しているかを表示します。");
+        System.err.println("   オプション:");
+        System.err.println("     -j <count>             ハッシュ値の計算に使用するスレッド数(省略時: "
+                + DEFAULT_THREADS + ")");
+        System.err.println();
     }
 
+    static final int DEFAULT_THREADS = 4;
+
     static Integer toInteger(String intStr) {
         try {
             return Integer.valueOf(intStr);
@@ -91,6 +266,59 @@ public class CommandLineUtil {
         }
     }
 
+    /**
+     * サイズを表す文字列を数値に変換します。末尾に {@code K}、{@code M}、{@code G} (大文字小文字を区別しない)
+     * を付けた場合は、それぞれ 1024、1024<sup>2</sup>、1024<sup>3</sup> 倍した値になります。
+     * 
+     * @return 変換したサイズ。変換できない場合や正数でない場合は {@code null}。
+     */
+    static Long toSize(String sizeStr) {
+        if (sizeStr == null || sizeStr.isEmpty()) {
+            return null;
+        }
+        final int shift;
+        switch (Character.toUpperCase(sizeStr.charAt(sizeStr.length() - 1))) {
+            case 'K':
+                shift = 10;
+                break;
+            case 'M':
+                shift = 20;
+                break;
+            case 'G':
+                shift = 30;
+                break;
+            default:
+                shift = 0;
+                break;
+        }
+        final String digits = (shift == 0) ? sizeStr : sizeStr.substring(0, sizeStr.length() - 1);
+        final long value;
+        try {
+            value = Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (value <= 0 || (Long.MAX_VALUE >> shift) < value) {
+            return null;
+        }
+        return Long.valueOf(value << shift);
+    }
+
+    /**
+     * ロック取得時の動作を表す文字列 ({@code wait} または {@code fail}、大文字小文字を区別しない) を変換します。
+     *
+     * @return 変換した値。{@code null} の場合は {@link FileLocker.Policy#WAIT}。変換できない場合は {@code null}。
+     */
+    static FileLocker.Policy toLockPolicy(String policyStr) {
+        if (policyStr == null || policyStr.equalsIgnoreCase("wait")) {
+            return FileLocker.Policy.WAIT;
+        }
+        if (policyStr.equalsIgnoreCase("fail")) {
+            return FileLocker.Policy.FAIL;
+        }
+        return null;
+    }
+
     static byte[] toByteArray(String bytesStr, int byteLength) {
         if (bytesStr == null) {
             return new byte[byteLength];
@@ -107,4 +335,14 @@ public class CommandLineUtil {
         return result;
     }
 
+    static String toHexString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (int index = 0; index < bytes.length; index++) {
+            final int value = bytes[index] & 0xff;
+            sb.append(Character.forDigit(value >>> 4, 16));
+            sb.append(Character.forDigit(value & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
 }
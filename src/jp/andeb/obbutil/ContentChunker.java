@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 内容に基づいてバイト列をチャンクに分割します (content-defined chunking)。
+ * <p>
+ * Gear ハッシュをローリングハッシュとして使用し、ハッシュ値の上位ビットがすべて 0 になった位置を
+ * チャンクの境界とします。境界はデータの内容だけで決まるため、途中にデータが挿入・削除されても
+ * その前後のチャンクは変化しません。
+ */
+public class ContentChunker {
+
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+
+    public static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    /** チャンクの境界がすべての環境で同一になるよう、固定のシードで生成したテーブル。 */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        final Random random = new Random(0x0105998301059983L);
+        for (int index = 0; index < GEAR.length; index++) {
+            GEAR[index] = random.nextLong();
+        }
+    }
+
+    private final int minSize_;
+
+    private final int maxSize_;
+
+    private final long mask_;
+
+    /**
+     * @param minSize チャンクの最小サイズ。正数であること。
+     * @param averageSize チャンクの平均サイズの目安。2 のべき乗で {@code minSize} より大きいこと。
+     * @param maxSize チャンクの最大サイズ。{@code averageSize} より大きいこと。
+     */
+    public ContentChunker(int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || averageSize <= minSize || maxSize <= averageSize) {
+            throw new IllegalArgumentException("0 < minSize < averageSize < maxSize must be satisfied.");
+        }
+        if (Integer.bitCount(averageSize) != 1) {
+            throw new IllegalArgumentException("'averageSize' must be power of 2.");
+        }
+        minSize_ = minSize;
+        maxSize_ = maxSize;
+        final int bits = Integer.numberOfTrailingZeros(averageSize);
+        // 左シフトする Gear ハッシュでは上位ビットほど多くのバイトの影響を受けるため、上位ビットを判定に使う
+        mask_ = ((1L << bits) - 1) << (Long.SIZE - bits);
+    }
+
+    public ContentChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    public int getMaxSize() {
+        return maxSize_;
+    }
+
+    /**
+     * {@code start} から始まるチャンクの終端位置を求めます。
+     *
+     * @param data 対象のバイト列。
+     * @param start チャンクの先頭位置。
+     * @param end 対象範囲の終端位置。{@code start} より大きいこと。
+     * @return チャンクの終端位置 (このバイトはチャンクに含まれない)。{@code end} を超えることはありません。
+     */
+    public int nextBoundary(ByteBuffer data, int start, int end) {
+        final int limit = (int) Math.min(end, (long) start + maxSize_);
+        int index = (int) Math.min(limit, (long) start + minSize_);
+        long hash = 0;
+        for (; index < limit; index++) {
+            hash = (hash << 1) + GEAR[data.get(index) & 0xff];
+            if ((hash & mask_) == 0) {
+                return index + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * メモリマップしたファイル上の FAT (FAT12/FAT16/FAT32) ファイルシステムを読み取ります。
+ * <p>
+ * OBB ファイルの中身は FAT でフォーマットされたディスクイメージです。このクラスはディレクトリツリーの列挙と
+ * ファイル内容の読み取りのみを行い、書き込みは行いません。読み取りには絶対位置指定のメソッドのみを使用するため、
+ * 1 つのインスタンスを複数のスレッドから同時に使用できます。
+ */
+public class FatImage {
+
+    /** 一度にメモリマップする最大のバイト数。 */
+    private static final int REGION_SIZE = 1 << 30;
+
+    private static final int DIR_ENTRY_SIZE = 32;
+
+    private static final int ATTR_VOLUME_ID = 0x08;
+
+    private static final int ATTR_DIRECTORY = 0x10;
+
+    private static final int ATTR_LONG_NAME = 0x0f;
+
+    /** 長いファイル名のエントリ中で、UTF-16LE の各文字が格納されている位置。 */
+    private static final int[] LONG_NAME_CHAR_OFFSETS = {
+            1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30
+    };
+
+    private static final Charset SHORT_NAME_ENCODING = Charset.forName("ISO-8859-1");
+
+    /**
+     * FAT ファイルシステムとして解釈できない場合にスローされる例外です。
+     */
+    public static final class InvalidImageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidImageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * イメージ中の通常ファイルです。
+     */
+    public static final class Entry {
+        private final String path_;
+
+        private final long size_;
+
+        private final long firstCluster_;
+
+        Entry(String path, long size, long firstCluster) {
+            path_ = path;
+            size_ = size;
+            firstCluster_ = firstCluster;
+        }
+
+        /** {@code /} で始まり、{@code /} で区切られたパス。 */
+        public String getPath() {
+            return path_;
+        }
+
+        public long getSize() {
+            return size_;
+        }
+
+        long getFirstCluster() {
+            return firstCluster_;
+        }
+    }
+
+    private final MappedByteBuffer[] regions_;
+
+    private final int fatBits_;
+
+    private final int bytesPerCluster_;
+
+    private final long fatOffset_;
+
+    private final long rootDirOffset_;
+
+    private final int rootDirSize_;
+
+    private final long rootCluster_;
+
+    private final long dataOffset_;
+
+    private final long clusterCount_;
+
+    private final long imageSize_;
+
+    /**
+     * チャネルの先頭から FAT ファイルシステムを読み取ります。
+     *
+     * @param channel 読み取り対象のチャネル。
+     * @param limit イメージとして扱うバイト数の上限。末尾に OBB 情報がある場合はそれを除いたサイズを指定します。
+     * @throws IOException 読み取りに失敗した場合。
+     * @throws InvalidImageException FAT ファイルシステムとして解釈できない場合。
+     */
+    public FatImage(FileChannel channel, long limit) throws IOException, InvalidImageException {
+        final long available = Math.min(channel.size(), limit);
+        if (available < 512) {
+            throw new InvalidImageException("too small");
+        }
+        final ByteBuffer boot = channel.map(FileChannel.MapMode.READ_ONLY, 0, 512);
+        boot.order(ByteOrder.LITTLE_ENDIAN);
+        final int bytesPerSector = boot.getShort(11) & 0xffff;
+        final int sectorsPerCluster = boot.get(13) & 0xff;
+        final int reservedSectors = boot.getShort(14) & 0xffff;
+        final int fatCount = boot.get(16) & 0xff;
+        final int rootEntryCount = boot.getShort(17) & 0xffff;
+        final long totalSectors16 = boot.getShort(19) & 0xffff;
+        final long fatSize16 = boot.getShort(22) & 0xffff;
+        final long totalSectors32 = boot.getInt(32) & 0xffffffffL;
+        final long fatSize32 = boot.getInt(36) & 0xffffffffL;
+        if (Integer.bitCount(bytesPerSector) != 1 || bytesPerSector < 512 || 4096 < bytesPerSector
+                || Integer.bitCount(sectorsPerCluster) != 1 || reservedSectors == 0
+                || fatCount == 0) {
+            throw new InvalidImageException("invalid boot sector");
+        }
+        final long fatSize = (fatSize16 != 0) ? fatSize16 : fatSize32;
+        final long totalSectors = (totalSectors16 != 0) ? totalSectors16 : totalSectors32;
+        final long rootDirSectors = ((long) rootEntryCount * DIR_ENTRY_SIZE + bytesPerSector - 1)
+                / bytesPerSector;
+        final long firstDataSector = reservedSectors + fatCount * fatSize + rootDirSectors;
+        if (fatSize == 0 || totalSectors <= firstDataSector) {
+            throw new InvalidImageException("invalid boot sector");
+        }
+        clusterCount_ = (totalSectors - firstDataSector) / sectorsPerCluster;
+        if (clusterCount_ < 4085) {
+            fatBits_ = 12;
+        } else if (clusterCount_ < 65525) {
+            fatBits_ = 16;
+        } else {
+            fatBits_ = 32;
+        }
+
+        bytesPerCluster_ = bytesPerSector * sectorsPerCluster;
+        fatOffset_ = (long) reservedSectors * bytesPerSector;
+        rootDirOffset_ = (reservedSectors + fatCount * fatSize) * bytesPerSector;
+        rootDirSize_ = (int) (rootDirSectors * bytesPerSector);
+        rootCluster_ = (fatBits_ == 32) ? (boot.getInt(44) & 0x0fffffffL) : 0;
+        dataOffset_ = firstDataSector * bytesPerSector;
+        imageSize_ = Math.min(available, totalSectors * bytesPerSector);
+        if (imageSize_ < dataOffset_) {
+            throw new InvalidImageException("truncated image");
+        }
+
+        final int regionCount = (int) ((imageSize_ + REGION_SIZE - 1) / REGION_SIZE);
+        regions_ = new MappedByteBuffer[regionCount];
+        for (int index = 0; index < regionCount; index++) {
+            final long offset = (long) index * REGION_SIZE;
+            regions_[index] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(
+                    REGION_SIZE, imageSize_ - offset));
+            regions_[index].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /** FAT の種類 (12、16 または 32)。 */
+    public int getFatBits() {
+        return fatBits_;
+    }
+
+    /**
+     * すべての通常ファイルを列挙します。ディレクトリ自体は含みません。
+     *
+     * @return ファイルのリスト。ディレクトリごとにディレクトリエントリの順に並びます。
+     * @throws InvalidImageException ディレクトリ構造が壊れている場合。複数のディレクトリエントリが同じ
+     *             ディレクトリを指している場合を含みます。
+     */
+    public List<Entry> listFiles() throws InvalidImageException {
+        final List<Entry> result = new ArrayList<Entry>();
+        // 祖先などを指すディレクトリエントリで走査が循環や指数的な重複を起こさないよう、読んだディレクトリを記録する
+        final Set<Long> visited = new HashSet<Long>();
+        final byte[] root;
+        if (fatBits_ == 32) {
+            visited.add(Long.valueOf(rootCluster_));
+            root = readChain(rootCluster_);
+        } else {
+            root = new byte[rootDirSize_];
+            read(rootDirOffset_, root, 0, root.length);
+        }
+        listDirectory(root, "/", result, visited, 0);
+        return result;
+    }
+
+    /**
+     * ファイルの内容をダイジェストに入力します。
+     *
+     * @param entry 対象のファイル。
+     * @param digest 入力先のダイジェスト。
+     * @throws InvalidImageException クラスタチェーンが壊れている場合。
+     */
+    public void digest(Entry entry, MessageDigest digest) throws InvalidImageException {
+        final byte[] buffer = new byte[bytesPerCluster_];
+        long remaining = entry.getSize();
+        long cluster = entry.getFirstCluster();
+        long steps = 0;
+        while (0 < remaining) {
+            if (!isDataCluster(cluster) || clusterCount_ < ++steps) {
+                throw new InvalidImageException("broken cluster chain: " + entry.getPath());
+            }
+            final int len = (int) Math.min(bytesPerCluster_, remaining);
+            read(clusterOffset(cluster), buffer, 0, len);
+            digest.update(buffer, 0, len);
+            remaining -= len;
+            cluster = nextCluster(cluster);
+        }
+    }
+
+    private void listDirectory(byte[] dir, String parent, List<Entry> result, Set<Long> visited,
+            int depth) throws InvalidImageException {
+        if (64 < depth) {
+            throw new InvalidImageException("directory too deep: " + parent);
+        }
+        final ByteBuffer entries = ByteBuffer.wrap(dir).order(ByteOrder.LITTLE_ENDIAN);
+        final char[] longName = new char[20 * 13];
+        int longNameChecksum = -1;
+        int longNameLength = 0;
+        for (int offset = 0; offset + DIR_ENTRY_SIZE <= dir.length; offset += DIR_ENTRY_SIZE) {
+            final int first = dir[offset] & 0xff;
+            if (first == 0x00) {
+                break;
+            }
+            final int attr = dir[offset + 11] & 0xff;
+            if (first == 0xe5) {
+                longNameChecksum = -1;
+                continue;
+            }
+            if ((attr & 0x3f) == ATTR_LONG_NAME) {
+                final int order = first & 0x1f;
+                if (order == 0 || 20 < order) {
+                    longNameChecksum = -1;
+                    continue;
+                }
+                if ((first & 0x40) != 0) {
+                    longNameLength = order * 13;
+                    longNameChecksum = dir[offset + 13] & 0xff;
+                }
+                final int base = (order - 1) * 13;
+                for (int index = 0; index < 13; index++) {
+                    final int pos = offset + LONG_NAME_CHAR_OFFSETS[index];
+                    longName[base + index] = entries.getChar(pos);
+                }
+                continue;
+            }
+            if ((attr & ATTR_VOLUME_ID) != 0) {
+                longNameChecksum = -1;
+                continue;
+            }
+
+            String name = null;
+            if (0 <= longNameChecksum && longNameChecksum == shortNameChecksum(dir, offset)) {
+                int length = 0;
+                while (length < longNameLength && longName[length] != 0) {
+                    length++;
+                }
+                name = new String(longName, 0, length);
+            }
+            longNameChecksum = -1;
+            if (name == null) {
+                name = shortName(dir, offset);
+            }
+            if (name.equals(".") || name.equals("..")) {
+                continue;
+            }
+
+            final long cluster = ((fatBits_ == 32) ? ((entries.getShort(offset + 20) & 0xffffL) << 16)
+                    : 0) | (entries.getShort(offset + 26) & 0xffff);
+            final String path = parent + name;
+            if ((attr & ATTR_DIRECTORY) != 0) {
+                if (isDataCluster(cluster) && !visited.add(Long.valueOf(cluster))) {
+                    throw new InvalidImageException("directory visited twice: " + path);
+                }
+                listDirectory(readChain(cluster), path + "/", result, visited, depth + 1);
+            } else {
+                result.add(new Entry(path, entries.getInt(offset + 28) & 0xffffffffL, cluster));
+            }
+        }
+    }
+
+    private static int shortNameChecksum(byte[] dir, int offset) {
+        int sum = 0;
+        for (int index = 0; index < 11; index++) {
+            sum = (((sum & 1) << 7) + (sum >> 1) + (dir[offset + index] & 0xff)) & 0xff;
+        }
+        return sum;
+    }
+
+    private static String shortName(byte[] dir, int offset) {
+        final byte[] raw = new byte[11];
+        System.arraycopy(dir, offset, raw, 0, 11);
+        if ((raw[0] & 0xff) == 0x05) {
+            raw[0] = (byte) 0xe5;
+        }
+        final int caseFlags = dir[offset + 12];
+        String base = new String(raw, 0, 8, SHORT_NAME_ENCODING).trim();
+        String ext = new String(raw, 8, 3, SHORT_NAME_ENCODING).trim();
+        if ((caseFlags & 0x08) != 0) {
+            base = base.toLowerCase(Locale.ENGLISH);
+        }
+        if ((caseFlags & 0x10) != 0) {
+            ext = ext.toLowerCase(Locale.ENGLISH);
+        }
+        return ext.isEmpty() ? base : base + "." + ext;
+    }
+
+    /**
+     * クラスタチェーンを終端まで読み取ります。
+     */
+    private byte[] readChain(long firstCluster) throws InvalidImageException {
+        final List<Long> clusters = new ArrayList<Long>();
+        long cluster = firstCluster;
+        while (isDataCluster(cluster)) {
+            if (clusterCount_ < clusters.size()) {
+                throw new InvalidImageException("cluster chain loops: " + firstCluster);
+            }
+            clusters.add(Long.valueOf(cluster));
+            cluster = nextCluster(cluster);
+        }
+        final long total = (long) clusters.size() * bytesPerCluster_;
+        if (Integer.MAX_VALUE < total) {
+            throw new InvalidImageException("directory too large");
+        }
+        final byte[] result = new byte[(int) total];
+        for (int index = 0; index < clusters.size(); index++) {
+            read(clusterOffset(clusters.get(index).longValue()), result, index * bytesPerCluster_,
+                    bytesPerCluster_);
+        }
+        return result;
+    }
+
+    private boolean isDataCluster(long cluster) {
+        return 2 <= cluster && cluster < clusterCount_ + 2;
+    }
+
+    private long nextCluster(long cluster) throws InvalidImageException {
+        switch (fatBits_) {
+            case 12: {
+                final long offset = fatOffset_ + cluster + cluster / 2;
+                final int value = (byteAt(offset) & 0xff) | ((byteAt(offset + 1) & 0xff) << 8);
+                return ((cluster & 1) == 0) ? (value & 0xfff) : (value >>> 4);
+            }
+            case 16: {
+                final long offset = fatOffset_ + cluster * 2;
+                return (byteAt(offset) & 0xff) | ((byteAt(offset + 1) & 0xff) << 8);
+            }
+            default: {
+                final long offset = fatOffset_ + cluster * 4;
+                long value = 0;
+                for (int index = 3; 0 <= index; index--) {
+                    value = (value << 8) | (byteAt(offset + index) & 0xff);
+                }
+                return value & 0x0fffffffL;
+            }
+        }
+    }
+
+    private long clusterOffset(long cluster) {
+        return dataOffset_ + (cluster - 2) * bytesPerCluster_;
+    }
+
+    private byte byteAt(long position) throws InvalidImageException {
+        if (position < 0 || imageSize_ <= position) {
+            throw new InvalidImageException("out of image: " + position);
+        }
+        return regions_[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+    }
+
+    private void read(long position, byte[] dst, int offset, int length)
+            throws InvalidImageException {
+        if (position < 0 || imageSize_ < position + length) {
+            throw new InvalidImageException("out of image: " + position);
+        }
+        while (0 < length) {
+            final ByteBuffer region = regions_[(int) (position / REGION_SIZE)].duplicate();
+            final int regionOffset = (int) (position % REGION_SIZE);
+            final int len = Math.min(length, region.limit() - regionOffset);
+            region.position(regionOffset);
+            region.get(dst, offset, len);
+            position += len;
+            offset += len;
+            length -= len;
+        }
+    }
+}
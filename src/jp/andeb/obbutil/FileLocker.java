@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OBB ファイルを変更する操作を排他制御するためのロックです。
+ * <p>
+ * 別プロセスとの排他には {@link FileChannel} のファイルロックを使用します。ファイルロックはプロセス単位で
+ * 保持されるため、同じプロセス内の複数のスレッドが同じファイルをロックしようとすると
+ * {@link OverlappingFileLockException} となります。これを避けるため、ファイルロックの取得前に
+ * 正規化したパスごとのロックを取得します。パスごとのロックは使用中のスレッドの数を数え、
+ * 誰も使用しなくなった時点で破棄します。
+ */
+public final class FileLocker {
+
+    /**
+     * ロックを取得できなかった場合の動作です。
+     */
+    public enum Policy {
+        /** ロックが解放されるまで待ちます。 */
+        WAIT,
+        /** 待たずに {@link LockUnavailableException} をスローします。 */
+        FAIL
+    }
+
+    /**
+     * 他のスレッドまたはプロセスがロックを保持しているため、ロックを取得できなかった場合にスローされる例外です。
+     */
+    public static final class LockUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LockUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 正規化したパスごとのロックです。{@link #users_} は {@code this} で同期して読み書きします。
+     */
+    private static final class PathLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        /** このロックを参照しているスレッドの数。0 になったものはマップから取り除かれており、再利用しない。 */
+        int users_ = 1;
+    }
+
+    private static final ConcurrentMap<String, PathLock> LOCKS =
+            new ConcurrentHashMap<String, PathLock>();
+
+    private final String path_;
+
+    private final PathLock pathLock_;
+
+    private final FileLock fileLock_;
+
+    private FileLocker(String path, PathLock pathLock, FileLock fileLock) {
+        path_ = path;
+        pathLock_ = pathLock;
+        fileLock_ = fileLock;
+    }
+
+    /**
+     * ファイル全体の排他ロックを取得します。
+     *
+     * @param path ロック対象のファイルのパス。スレッド間の排他に使用します。
+     * @param channel ロック対象のファイルを書き込み可能で開いたチャネル。
+     * @param policy ロックを取得できなかった場合の動作。
+     * @return 取得したロック。使用後は {@link #release()} で解放すること。
+     * @throws LockUnavailableException {@code policy} が {@link Policy#FAIL} で、ロックを取得できなかった場合。
+     * @throws IOException ロックの取得に失敗した場合。
+     */
+    public static FileLocker acquire(File path, FileChannel channel, Policy policy)
+            throws IOException {
+        final String canonicalPath = path.getCanonicalPath();
+        final PathLock pathLock = reference(canonicalPath);
+        if (policy == Policy.FAIL) {
+            if (!pathLock.tryLock()) {
+                unreference(canonicalPath, pathLock);
+                throw new LockUnavailableException("locked by another thread: " + path.getPath());
+            }
+        } else {
+            pathLock.lock();
+        }
+        boolean acquired = false;
+        try {
+            final FileLock fileLock;
+            try {
+                fileLock = (policy == Policy.FAIL) ? channel.tryLock() : channel.lock();
+            } catch (OverlappingFileLockException e) {
+                // 別名 (ハードリンクなど) で同じファイルをロックしているスレッドがある
+                throw new LockUnavailableException("locked by another thread: " + path.getPath());
+            }
+            if (fileLock == null) {
+                throw new LockUnavailableException("locked by another process: " + path.getPath());
+            }
+            acquired = true;
+            return new FileLocker(canonicalPath, pathLock, fileLock);
+        } finally {
+            if (!acquired) {
+                pathLock.unlock();
+                unreference(canonicalPath, pathLock);
+            }
+        }
+    }
+
+    /**
+     * ロックを解放します。ロックを取得したスレッドから呼び出すこと。
+     *
+     * @throws IOException ファイルロックの解放に失敗した場合。パスごとのロックは解放されます。
+     */
+    public void release() throws IOException {
+        try {
+            if (fileLock_.isValid()) {
+                fileLock_.release();
+            }
+        } finally {
+            pathLock_.unlock();
+            unreference(path_, pathLock_);
+        }
+    }
+
+    /**
+     * パスに対応するロックを取得し、参照数を増やします。
+     */
+    private static PathLock reference(String path) {
+        while (true) {
+            final PathLock existing = LOCKS.get(path);
+            if (existing == null) {
+                final PathLock created = new PathLock();
+                if (LOCKS.putIfAbsent(path, created) == null) {
+                    return created;
+                }
+                continue;
+            }
+            synchronized (existing) {
+                if (0 < existing.users_) {
+                    existing.users_++;
+                    return existing;
+                }
+            }
+            // 破棄されたロックを見つけた。マップから取り除かれるのを待って再試行する
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 参照数を減らし、誰も参照しなくなったロックをマップから取り除きます。
+     */
+    private static void unreference(String path, PathLock pathLock) {
+        synchronized (pathLock) {
+            if (--pathLock.users_ == 0) {
+                LOCKS.remove(path, pathLock);
+            }
+        }
+    }
+
+    static int getLockCount() {
+        return LOCKS.size();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 1 つのバージョンの OBB 情報を解釈します。
+ * <p>
+ * OBB 情報は形式によらず、末尾に {@value #TAG_SIZE} バイトのタグ (タグを含まない OBB 情報のサイズと
+ * シグネチャ {@link #SIGNATURE}、いずれもリトルエンディアン) を持ち、先頭 4 バイトがバージョンです。
+ * タグの検証は {@link FooterCodecRegistry} が行い、コーデックはタグより前の部分を解釈します。
+ * <p>
+ * 実装は {@link FooterCodecRegistry} に登録して使用します。独自の形式を追加する場合は、
+ * {@code META-INF/services/jp.andeb.obbutil.FooterCodec} に実装クラス名を記述した JAR をクラスパスに加えると、
+ * {@link FooterCodecRegistry#getDefault()} に自動的に登録されます。実装は複数のスレッドから同時に
+ * 呼び出されるため、スレッドセーフであること。
+ */
+public interface FooterCodec {
+
+    /** OBB 情報の末尾のタグのバイト数。 */
+    int TAG_SIZE = 8;
+
+    /** タグに記録できる OBB 情報のサイズ (タグを含まない) の最大値。 */
+    int MAX_BUFFER_SIZE = 32768;
+
+    /** タグの末尾 4 バイトに格納されるシグネチャ。 */
+    int SIGNATURE = 0x01059983;
+
+    /**
+     * OBB 情報を保持していない場合や、OBB 情報として解釈できない場合にスローされる例外です。
+     */
+    class NotObbException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public NotObbException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * このコーデックが扱う形式のバージョン。OBB 情報の先頭 4 バイト (リトルエンディアン) の値です。
+     */
+    int getVersion();
+
+    /**
+     * OBB 情報を解釈します。
+     *
+     * @param footer OBB 情報を保持するバッファ。{@code position} が OBB 情報の先頭 (バージョン) を、
+     *            {@code limit} が末尾のタグの直後を指し、バイトオーダーはリトルエンディアンです。
+     *            ファイルから読み込んだバッファやメモリマップしたバッファの一部を共有しているため、
+     *            内容を書き換えないこと。{@code position} は変更して構いません。
+     * @return 解釈した OBB 情報。
+     * @throws NotObbException OBB 情報として解釈できない場合。
+     */
+    ObbInfo decode(ByteBuffer footer) throws NotObbException;
+}
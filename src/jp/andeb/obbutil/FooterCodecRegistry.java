@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+
+/**
+ * OBB 情報の形式のバージョンごとに {@link FooterCodec} を保持し、ファイル末尾の OBB 情報を
+ * 対応するコーデックで解釈します。
+ * <p>
+ * 末尾のタグの検証とファイルからの読み込みはすべての形式で共通です。ファイル末尾は一度の読み込みで取得し、
+ * コーデックにはそのバッファを共有したビューを渡すため、形式が増えても読み込みの回数は変わりません。
+ */
+public final class FooterCodecRegistry {
+
+    /** ファイル末尾から最初に読み込むバイト数。ほとんどの OBB 情報はこの範囲に収まる。 */
+    private static final int TAIL_READ_SIZE = 4096;
+
+    /** タグが示す OBB 情報のサイズの最小値。少なくともバージョンを格納できること。 */
+    private static final int MINIMUM_FOOTER_SIZE = 4;
+
+    private static final FooterCodecRegistry DEFAULT = new FooterCodecRegistry();
+
+    static {
+        DEFAULT.register(ObbInfoV1.CODEC);
+        // 読み込めないコーデックがあっても、クラスの初期化自体は失敗させない
+        final Iterator<FooterCodec> providers = ServiceLoader.load(FooterCodec.class).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+            } catch (ServiceConfigurationError e) {
+                System.err.println("警告: OBB 情報のコーデックの一覧を読み込めませんでした: "
+                        + e.getMessage());
+                break;
+            }
+            try {
+                DEFAULT.register(providers.next());
+            } catch (ServiceConfigurationError e) {
+                System.err.println("警告: OBB 情報のコーデックを読み込めませんでした: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                System.err.println("警告: OBB 情報のコーデックを登録できませんでした: " + e.getMessage());
+            }
+        }
+    }
+
+    private final ConcurrentMap<Integer, FooterCodec> codecs_ =
+            new ConcurrentHashMap<Integer, FooterCodec>();
+
+    /**
+     * 読み取った OBB 情報と、そのファイル上のバイト数の組です。
+     */
+    public static final class Footer {
+        private final ObbInfo info_;
+
+        private final int length_;
+
+        Footer(ObbInfo info, int length) {
+            info_ = info;
+            length_ = length;
+        }
+
+        public ObbInfo getInfo() {
+            return info_;
+        }
+
+        /**
+         * タグを含む OBB 情報のファイル上のバイト数。タグに記録されたサイズから求めるため、
+         * {@link ObbInfo#toBytes()} で再エンコードした長さとは一致しない場合があります。
+         */
+        public int getLength() {
+            return length_;
+        }
+    }
+
+    /**
+     * コーデックが 1 つも登録されていないレジストリを構築します。
+     */
+    public FooterCodecRegistry() {
+        super();
+    }
+
+    /**
+     * 標準のレジストリを返します。{@link ObbInfoV1} のコーデックと、クラスパス上の
+     * {@code META-INF/services/jp.andeb.obbutil.FooterCodec} に記述されたコーデックが登録されています。
+     */
+    public static FooterCodecRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * コーデックを登録します。
+     *
+     * @param codec 登録するコーデック。
+     * @throws IllegalArgumentException 同じバージョンのコーデックが既に登録されている場合。
+     */
+    public void register(FooterCodec codec) {
+        if (codecs_.putIfAbsent(Integer.valueOf(codec.getVersion()), codec) != null) {
+            throw new IllegalArgumentException("codec for version " + codec.getVersion()
+                    + " is already registered.");
+        }
+    }
+
+    /**
+     * @return 指定されたバージョンのコーデック。登録されていない場合は {@code null}。
+     */
+    public FooterCodec getCodec(int version) {
+        return codecs_.get(Integer.valueOf(version));
+    }
+
+    public ObbInfo read(File obbFile) throws FileNotFoundException, IOException, NotObbException {
+        final RandomAccessFile obb = new RandomAccessFile(obbFile, "r");
+        try {
+            return read(obb.getChannel());
+        } finally {
+            obb.close();
+        }
+    }
+
+    /**
+     * 渡された {@link FileChannel} の末尾から OBB 情報を読み取ります。
+     * <p>
+     * ファイル末尾の {@value #TAIL_READ_SIZE} バイトを一度の読み込みで取得し、OBB 情報がそれより
+     * 大きい場合にのみ追加の読み込みを行います。チャネルの現在位置は変更しません。
+     *
+     * @param obb 読み取り対象のチャネル。
+     * @return 読み取った OBB 情報。
+     * @throws IOException 読み取りに失敗した場合。
+     * @throws NotObbException OBB 情報を保持していない場合、または形式に対応するコーデックが無い場合。
+     */
+    public ObbInfo read(FileChannel obb) throws IOException, NotObbException {
+        return readFooter(obb).getInfo();
+    }
+
+    /**
+     * {@link #read(FileChannel)} と同様に OBB 情報を読み取り、ファイル上のバイト数とともに返します。
+     * OBB 情報を取り除く場合など、ファイル上のバイト数が必要な場合に使用します。
+     */
+    public Footer readFooter(FileChannel obb) throws IOException, NotObbException {
+        return readFooter(obb, obb.size());
+    }
+
+    /**
+     * 渡された {@link FileChannel} の {@code end} の直前で終わる OBB 情報を読み取ります。
+     *
+     * @param obb 読み取り対象のチャネル。
+     * @param end OBB 情報の終端 (タグの直後) の位置。ファイルサイズ以下であること。
+     * @see #readFooter(FileChannel)
+     */
+    Footer readFooter(FileChannel obb, long end) throws IOException, NotObbException {
+        if (end < FooterCodec.TAG_SIZE) {
+            throw new NotObbException("too small");
+        }
+
+        ByteBuffer tail = readTail(obb, end, (int) Math.min(end, TAIL_READ_SIZE));
+        final int requiredSize = readFooterSize(tail) + FooterCodec.TAG_SIZE;
+        if (tail.remaining() < requiredSize) {
+            if (end < requiredSize) {
+                throw new NotObbException("invalid footer size");
+            }
+            tail = readTail(obb, end, requiredSize);
+        }
+        return decodeFooter(tail);
+    }
+
+    /**
+     * ファイル末尾のバイト列を保持する {@link ByteBuffer} から OBB 情報を読み取ります。
+     *
+     * @param tail {@code position} から {@code limit} までにファイル末尾のバイト列を保持するバッファ。
+     *            {@code limit} がファイル終端 (タグの直後) に対応していること。バッファの
+     *            {@code position}、{@code limit}、バイトオーダーは変更しません。
+     * @return 読み取った OBB 情報。
+     * @throws NotObbException OBB 情報として解釈できない場合、または形式に対応するコーデックが無い場合。
+     */
+    public ObbInfo decode(ByteBuffer tail) throws NotObbException {
+        return decodeFooter(tail).getInfo();
+    }
+
+    /**
+     * {@link #decode(ByteBuffer)} と同様に OBB 情報を読み取り、ファイル上のバイト数とともに返します。
+     */
+    public Footer decodeFooter(ByteBuffer tail) throws NotObbException {
+        final int footerSize = readFooterSize(tail);
+        final int footerOffset = tail.limit() - FooterCodec.TAG_SIZE - footerSize;
+        if (footerOffset < tail.position()) {
+            throw new NotObbException("invalid footer size");
+        }
+        final ByteBuffer footer = tail.duplicate();
+        footer.order(ByteOrder.LITTLE_ENDIAN);
+        footer.position(footerOffset);
+
+        final int version = footer.getInt(footerOffset);
+        final FooterCodec codec = getCodec(version);
+        if (codec == null) {
+            throw new NotObbException("unsupported version: " + version);
+        }
+        return new Footer(codec.decode(footer), footerSize + FooterCodec.TAG_SIZE);
+    }
+
+    /**
+     * バッファ末尾のタグを検証し、タグに記録された OBB 情報のサイズ (タグを含まない) を返します。
+     */
+    private static int readFooterSize(ByteBuffer tail) throws NotObbException {
+        if (tail.remaining() < FooterCodec.TAG_SIZE) {
+            throw new NotObbException("too small");
+        }
+        final ByteBuffer tag = tail.duplicate();
+        tag.order(ByteOrder.LITTLE_ENDIAN);
+        final int tagOffset = tail.limit() - FooterCodec.TAG_SIZE;
+        final int footerSize = tag.getInt(tagOffset);
+        final int signature = tag.getInt(tagOffset + 4);
+        if (signature != FooterCodec.SIGNATURE) {
+            throw new NotObbException("signature not found");
+        }
+        if (FooterCodec.MAX_BUFFER_SIZE < footerSize || footerSize < MINIMUM_FOOTER_SIZE) {
+            throw new NotObbException("invalid footer size");
+        }
+        return footerSize;
+    }
+
+    /**
+     * {@code end} の直前の指定されたバイト数を読み取ります。
+     * 
+     * @param target 読み取り対象のチャネル。
+     * @param end 読み取る範囲の終端。通常はファイルサイズ。
+     * @param count 読み込むバイト数。{@code end} 以下であること。必ず指定されたバイト数を読み取ります。
+     * @return 読み取ったバイト列を保持するバッファ。{@code position} が {@code 0}、{@code limit} が
+     *         {@code count} と一致した状態で返されます。
+     * @throws IOException 読み取りに失敗した場合、またはファイルが途中で短くなった場合。
+     */
+    private static ByteBuffer readTail(FileChannel target, long end, int count)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(count);
+        long position = end - count;
+        while (buffer.hasRemaining()) {
+            final int len = target.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += len;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+import jp.andeb.obbutil.FooterCodecRegistry.Footer;
+
+/**
+ * ファイル末尾の任意の位置に存在する OBB 情報を検索します。
+ * <p>
+ * OBB 情報の付加が二重に行われたファイルや、転送途中で末尾が欠けたファイルを調べるために使用します。
+ * ファイル末尾を一定のサイズごとにヒープ上のバッファへ読み込み、シグネチャの先頭バイトを 8 バイト単位で
+ * 検索したうえで、候補ごとに OBB 情報として解釈できるかを検証します。メモリマップを使用しないのは、
+ * Windows ではマップが解放されるまで同じファイルを切り詰められないためです。
+ */
+public class FooterScanner {
+
+    public static final int DEFAULT_WINDOW_MB = 8;
+
+    /**
+     * 最後の OBB 情報の後ろにこのサイズ以下のデータしか無い場合、そのデータは不完全な OBB 情報とみなします。
+     */
+    private static final int MAX_PARTIAL_SIZE = FooterCodec.MAX_BUFFER_SIZE + FooterCodec.TAG_SIZE;
+
+    /** 一度に検索するバイト数。 */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** リトルエンディアンで格納されたシグネチャの先頭バイトを 8 個並べたもの。 */
+    private static final long FIRST_BYTE_PATTERN = ONES * (FooterCodec.SIGNATURE & 0xff);
+
+    /**
+     * ファイル中で見つかった OBB 情報です。
+     */
+    public static final class FoundFooter {
+        private final long offset_;
+
+        private final long end_;
+
+        private final ObbInfo info_;
+
+        FoundFooter(long offset, long end, ObbInfo info) {
+            offset_ = offset;
+            end_ = end;
+            info_ = info;
+        }
+
+        /** OBB 情報の先頭位置。 */
+        public long getOffset() {
+            return offset_;
+        }
+
+        /** OBB 情報の終端 (シグネチャの直後) の位置。 */
+        public long getEnd() {
+            return end_;
+        }
+
+        public long getLength() {
+            return end_ - offset_;
+        }
+
+        public ObbInfo getInfo() {
+            return info_;
+        }
+    }
+
+    private FooterScanner() {
+    }
+
+    /**
+     * ファイル末尾の {@code windowSize} バイトから OBB 情報を検索します。
+     *
+     * @param channel 検索対象のチャネル。
+     * @param windowSize 検索するバイト数。ファイルサイズより大きい場合はファイル全体を検索します。
+     * @return 見つかった OBB 情報のリスト。先頭位置の昇順に並びます。
+     * @throws IOException 読み取りに失敗した場合。
+     */
+    public static List<FoundFooter> scan(FileChannel channel, long windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("'windowSize' must be positive number.");
+        }
+        final long fileSize = channel.size();
+        final long windowStart = fileSize - Math.min(fileSize, windowSize);
+        final List<FoundFooter> result = new ArrayList<FoundFooter>();
+        if (fileSize - windowStart < 4) {
+            return result;
+        }
+
+        // 各チャンクの前に OBB 情報の最大サイズ分を重ねて読み込み、チャンク内で見つかったシグネチャに対応する
+        // OBB 情報の先頭がバッファに収まるようにする。チャンクの境界をまたぐシグネチャのため、後ろにも
+        // 3 バイト余分に読み込む
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_PARTIAL_SIZE
+                + (int) Math.min(CHUNK_SIZE, fileSize - windowStart) + 3);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (long chunkStart = windowStart; chunkStart < fileSize; chunkStart += CHUNK_SIZE) {
+            final long chunkEnd = Math.min(fileSize, chunkStart + CHUNK_SIZE);
+            final long base = Math.max(windowStart, chunkStart - MAX_PARTIAL_SIZE);
+            buffer.clear();
+            buffer.limit((int) (Math.min(fileSize, chunkEnd + 3) - base));
+            readFully(channel, buffer, base);
+            buffer.flip();
+
+            int index = (int) (chunkStart - base);
+            final int size = (int) (chunkEnd - base);
+            for (; index + 8 <= size; index += 8) {
+                final long x = buffer.getLong(index) ^ FIRST_BYTE_PATTERN;
+                // 一致したバイトの最上位ビットが立つ (一致バイトより上位に誤検出が混じることがあるが、候補ごとに検証する)
+                long found = (x - ONES) & ~x & HIGH_BITS;
+                while (found != 0) {
+                    final int candidate = index + (Long.numberOfTrailingZeros(found) >>> 3);
+                    checkCandidate(buffer, base, candidate, result);
+                    found &= found - 1;
+                }
+            }
+            for (; index < size; index++) {
+                checkCandidate(buffer, base, index, result);
+            }
+        }
+        return result;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            final int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            position += len;
+        }
+    }
+
+    private static void checkCandidate(ByteBuffer window, long base, int signatureOffset,
+            List<FoundFooter> result) {
+        final int end = signatureOffset + 4;
+        if (window.limit() < end
+                || window.getInt(signatureOffset) != FooterCodec.SIGNATURE) {
+            return;
+        }
+        final ByteBuffer tail = window.duplicate();
+        tail.position(0);
+        tail.limit(end);
+        final Footer footer;
+        try {
+            footer = FooterCodecRegistry.getDefault().decodeFooter(tail);
+        } catch (NotObbException e) {
+            return;
+        }
+        result.add(new FoundFooter(base + end - footer.getLength(), base + end, footer.getInfo()));
+    }
+
+    /**
+     * 余分な OBB 情報や不完全なデータを取り除いた後のファイルサイズを求めます。
+     * <p>
+     * ファイル末尾に最も近い OBB 情報と連続して並んでいる OBB 情報のうち、最初のものの直後までを残します。
+     * 次の場合は、見つかった OBB 情報がイメージ中の偶然シグネチャに似たデータである可能性があるため、
+     * 切り詰めは行いません。
+     * <ul>
+     * <li>最後の OBB 情報の後ろに、不完全な OBB 情報とはみなせない大きさのデータが続く場合。</li>
+     * <li>最後の OBB 情報の後ろのデータが、登録されているバージョンで始まっていない場合。</li>
+     * <li>切り詰め後のファイル末尾のタグが示すサイズで、OBB 情報として解釈できない場合。</li>
+     * </ul>
+     *
+     * @param channel 対象のチャネル。
+     * @param footers {@code channel} に対する {@link #scan(FileChannel, long)} の結果。
+     * @return 切り詰め後のファイルサイズ。切り詰める必要がない場合や、安全に判断できない場合は {@code -1}。
+     * @throws IOException 読み取りに失敗した場合。
+     */
+    public static long findRepairedLength(FileChannel channel, List<FoundFooter> footers)
+            throws IOException {
+        if (footers.isEmpty()) {
+            return -1;
+        }
+        final long fileSize = channel.size();
+        int first = footers.size() - 1;
+        final long partialSize = fileSize - footers.get(first).getEnd();
+        if (MAX_PARTIAL_SIZE < partialSize) {
+            return -1;
+        }
+        if (4 <= partialSize) {
+            final ByteBuffer version = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, version, footers.get(first).getEnd());
+            if (FooterCodecRegistry.getDefault().getCodec(version.getInt(0)) == null) {
+                return -1;
+            }
+        }
+        while (0 < first && footers.get(first - 1).getEnd() == footers.get(first).getOffset()) {
+            first--;
+        }
+        final long repairedLength = footers.get(first).getEnd();
+        if (repairedLength == fileSize) {
+            return -1;
+        }
+        try {
+            final Footer footer = FooterCodecRegistry.getDefault().readFooter(channel,
+                    repairedLength);
+            if (footer.getLength() != footers.get(first).getLength()) {
+                return -1;
+            }
+        } catch (NotObbException e) {
+            return -1;
+        }
+        return repairedLength;
+    }
+}
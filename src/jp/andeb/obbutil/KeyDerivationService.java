@@ -0,0 +1,457 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 による鍵導出を行い、導出した鍵をキャッシュします。
+ * <p>
+ * メモリ上のキャッシュのキーは (パスワードの HMAC, ソルト, 繰り返し回数) の組です。HMAC の鍵はインスタンスごとに
+ * 乱数で生成し、どこにも保存しません。キャッシュは {@code cacheSize} 件までに制限され、追い出された鍵のバイト列は
+ * ゼロで上書きされます。
+ * <p>
+ * キーストアファイルを指定した場合は、{@link #saveKeyStore()} で導出済みの鍵を保存し、次回以降の実行で再利用
+ * できます。キーストアのエイリアスは平文で保存されるため、ソルトと繰り返し回数だけから決め、パスワードに由来する
+ * 値は含めません。パスワードの照合値は鍵とともに暗号化されたエントリの中に格納します。
+ * <p>
+ * このクラスのメソッドは複数のスレッドから同時に呼び出すことができます。
+ */
+public class KeyDerivationService {
+
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /** Android の jobb ツールが使用する繰り返し回数。 */
+    public static final int DEFAULT_ITERATIONS = 1024;
+
+    /** Android の jobb ツールが使用する鍵長 (ビット)。 */
+    public static final int DEFAULT_KEY_LENGTH = 128;
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final String KEYSTORE_TYPE = "JCEKS";
+
+    private static final Charset PASSWORD_ENCODING = Charset.forName("UTF-8");
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** キーストアのエントリの先頭に格納するパスワードの照合値の長さ。 */
+    private static final int CHECK_LENGTH = 32;
+
+    private final int keyLength_;
+
+    private final byte[] cacheKeySecret_;
+
+    private final Map<CacheKey, byte[]> cache_;
+
+    private final File keyStoreFile_;
+
+    private final char[] keyStorePassword_;
+
+    private final KeyStore keyStore_;
+
+    private boolean keyStoreModified_;
+
+    /**
+     * キーストアを使用しない {@link KeyDerivationService} を構築します。
+     *
+     * @param keyLength 導出する鍵の長さ (ビット)。8 の倍数であること。
+     * @param cacheSize メモリ上にキャッシュする鍵の最大数。正数であること。
+     */
+    public KeyDerivationService(int keyLength, int cacheSize) {
+        this(keyLength, cacheSize, null, null, null);
+    }
+
+    /**
+     * キーストアを使用する {@link KeyDerivationService} を構築します。キーストアファイルが存在する場合は読み込みます。
+     *
+     * @param keyLength 導出する鍵の長さ (ビット)。8 の倍数であること。
+     * @param cacheSize メモリ上にキャッシュする鍵の最大数。正数であること。
+     * @param keyStoreFile キーストアファイル。
+     * @param keyStorePassword キーストアと各エントリを保護するパスワード。
+     * @throws IOException キーストアファイルの読み込みに失敗した場合。
+     * @throws GeneralSecurityException キーストアを復号できない場合。
+     */
+    public static KeyDerivationService withKeyStore(int keyLength, int cacheSize,
+            File keyStoreFile, char[] keyStorePassword) throws IOException,
+            GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+        if (keyStoreFile.exists()) {
+            final FileInputStream in = new FileInputStream(keyStoreFile);
+            try {
+                keyStore.load(in, keyStorePassword);
+            } finally {
+                in.close();
+            }
+        } else {
+            keyStore.load(null, keyStorePassword);
+        }
+        return new KeyDerivationService(keyLength, cacheSize, keyStoreFile,
+                keyStorePassword.clone(), keyStore);
+    }
+
+    private KeyDerivationService(int keyLength, final int cacheSize, File keyStoreFile,
+            char[] keyStorePassword, KeyStore keyStore) {
+        if (keyLength <= 0 || keyLength % 8 != 0) {
+            throw new IllegalArgumentException("'keyLength' must be positive multiple of 8.");
+        }
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("'cacheSize' must be positive number.");
+        }
+        keyLength_ = keyLength;
+        cacheKeySecret_ = new byte[32];
+        new SecureRandom().nextBytes(cacheKeySecret_);
+        cache_ = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+                if (size() <= cacheSize) {
+                    return false;
+                }
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+        };
+        keyStoreFile_ = keyStoreFile;
+        keyStorePassword_ = keyStorePassword;
+        keyStore_ = keyStore;
+    }
+
+    /**
+     * 鍵を導出します。キャッシュまたはキーストアに鍵があればそれを返します。
+     *
+     * @param password パスワード。
+     * @param salt ソルト。
+     * @param iterations 繰り返し回数。正数であること。
+     * @return 導出された鍵のコピー。呼び出し側で使用後にゼロで上書きしてかまいません。
+     * @throws GeneralSecurityException 鍵導出に失敗した場合。
+     */
+    public byte[] deriveKey(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("'iterations' must be positive number.");
+        }
+        final CacheKey cacheKey = new CacheKey(mac(cacheKeySecret_, password), salt, iterations);
+        synchronized (cache_) {
+            final byte[] cached = cache_.get(cacheKey);
+            if (cached != null) {
+                return cached.clone();
+            }
+        }
+
+        byte[] key = loadFromKeyStore(password, salt, iterations);
+        if (key == null) {
+            key = generateKey(password, salt, iterations);
+            storeToKeyStore(password, salt, iterations, key);
+        }
+        // 追い出しでゼロ埋めされる前にコピーするため、コピーもロック内で行う
+        synchronized (cache_) {
+            final byte[] cached = cache_.get(cacheKey);
+            if (cached != null) {
+                // 他のスレッドが先に同じ鍵をキャッシュした
+                Arrays.fill(key, (byte) 0);
+                return cached.clone();
+            }
+            cache_.put(cacheKey, key);
+            return key.clone();
+        }
+    }
+
+    /**
+     * PBKDF2 で鍵を導出します。キャッシュとキーストアは参照しません。
+     */
+    byte[] generateKey(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        final PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength_);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * 複数のソルトに対する鍵を並行して導出します。
+     *
+     * @param password パスワード。
+     * @param salts ソルトのリスト。
+     * @param iterations 繰り返し回数。正数であること。
+     * @param threads 使用するスレッド数。正数であること。
+     * @return 導出された鍵のリスト。{@code salts} と同じ順に並びます。
+     * @throws GeneralSecurityException 鍵導出に失敗した場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public List<byte[]> deriveKeys(final char[] password, List<byte[]> salts,
+            final int iterations, int threads) throws GeneralSecurityException,
+            InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(salts.size());
+            for (final byte[] salt : salts) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws GeneralSecurityException {
+                        return deriveKey(password, salt, iterations);
+                    }
+                }));
+            }
+            final List<byte[]> keys = new ArrayList<byte[]>(salts.size());
+            for (Future<byte[]> future : futures) {
+                try {
+                    keys.add(future.get());
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof GeneralSecurityException) {
+                        throw (GeneralSecurityException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+            return keys;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * メモリ上のキャッシュをゼロで上書きしたうえで破棄します。キーストアの内容には影響しません。
+     */
+    public void clearCache() {
+        synchronized (cache_) {
+            for (byte[] key : cache_.values()) {
+                Arrays.fill(key, (byte) 0);
+            }
+            cache_.clear();
+        }
+    }
+
+    int getCachedCount() {
+        synchronized (cache_) {
+            return cache_.size();
+        }
+    }
+
+    /**
+     * 導出済みの鍵をキーストアファイルに保存します。ファイルは可能であれば所有者のみが読み書きできるように作成されます。
+     *
+     * @throws IOException 書き込みに失敗した場合。
+     * @throws GeneralSecurityException キーストアの暗号化に失敗した場合。
+     * @throws IllegalStateException キーストアを使用しない {@link KeyDerivationService} の場合。
+     */
+    public void saveKeyStore() throws IOException, GeneralSecurityException {
+        if (keyStore_ == null) {
+            throw new IllegalStateException("key store is not configured.");
+        }
+        synchronized (keyStore_) {
+            if (!keyStoreModified_) {
+                return;
+            }
+            final File dir = keyStoreFile_.getAbsoluteFile().getParentFile();
+            final File tmpFile = File.createTempFile(keyStoreFile_.getName(), ".tmp", dir);
+            try {
+                restrictToOwner(tmpFile);
+                final FileOutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    keyStore_.store(out, keyStorePassword_);
+                } finally {
+                    out.close();
+                }
+                if (!tmpFile.renameTo(keyStoreFile_)) {
+                    // Windows では既存ファイルへの rename が失敗する
+                    if (!keyStoreFile_.delete() || !tmpFile.renameTo(keyStoreFile_)) {
+                        throw new IOException("failed to replace " + keyStoreFile_.getPath());
+                    }
+                }
+            } finally {
+                tmpFile.delete();
+            }
+            keyStoreModified_ = false;
+        }
+    }
+
+    /**
+     * キーストアから鍵を読み込みます。エントリは (照合値, 鍵) を連結したバイト列で、照合値が
+     * {@code password} から求めた値と一致しない場合は別のパスワードで保存されたものとして使用しません。
+     */
+    private byte[] loadFromKeyStore(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        if (keyStore_ == null) {
+            return null;
+        }
+        final byte[] encoded;
+        synchronized (keyStore_) {
+            final Key entry = keyStore_.getKey(toAlias(salt, iterations), keyStorePassword_);
+            if (entry == null) {
+                return null;
+            }
+            encoded = entry.getEncoded();
+        }
+        try {
+            if (encoded.length != CHECK_LENGTH + keyLength_ / 8) {
+                // 異なる鍵長または古い形式で保存されたエントリは使用しない
+                return null;
+            }
+            final byte[] check = passwordCheck(password, salt, iterations);
+            if (!MessageDigest.isEqual(check, Arrays.copyOf(encoded, CHECK_LENGTH))) {
+                return null;
+            }
+            return Arrays.copyOfRange(encoded, CHECK_LENGTH, encoded.length);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private void storeToKeyStore(char[] password, byte[] salt, int iterations, byte[] key)
+            throws GeneralSecurityException {
+        if (keyStore_ == null) {
+            return;
+        }
+        final byte[] check = passwordCheck(password, salt, iterations);
+        final byte[] encoded = new byte[CHECK_LENGTH + key.length];
+        System.arraycopy(check, 0, encoded, 0, CHECK_LENGTH);
+        System.arraycopy(key, 0, encoded, CHECK_LENGTH, key.length);
+        try {
+            synchronized (keyStore_) {
+                // 同じソルトと繰り返し回数のエントリは、別のパスワードのものであっても置き換える
+                keyStore_.setEntry(toAlias(salt, iterations),
+                        new KeyStore.SecretKeyEntry(new SecretKeySpec(encoded, "RAW")),
+                        new KeyStore.PasswordProtection(keyStorePassword_));
+                keyStoreModified_ = true;
+            }
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * キーストアのエイリアスを返します。エイリアスは平文で保存されるため、パスワードに由来する値は含めません。
+     */
+    private static String toAlias(byte[] salt, int iterations) throws GeneralSecurityException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(salt);
+        digest.update(ByteBuffer.allocate(4).putInt(iterations).array());
+        return CommandLineUtil.toHexString(digest.digest());
+    }
+
+    /**
+     * キーストアのエントリ内に格納するパスワードの照合値を返します。暗号化されたエントリの中にだけ現れます。
+     */
+    private static byte[] passwordCheck(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        final byte[] macKey = ByteBuffer.allocate(salt.length + 4).put(salt).putInt(iterations)
+                .array();
+        return mac(macKey, password);
+    }
+
+    private static byte[] mac(byte[] macKey, char[] password) throws GeneralSecurityException {
+        final ByteBuffer encoded = PASSWORD_ENCODING.encode(CharBuffer.wrap(password));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+            return mac.doFinal(bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+            if (encoded.hasArray()) {
+                Arrays.fill(encoded.array(), (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * 所有者以外のアクセス権を外します。Windows などでは失敗するため、失敗しても警告を表示して続行します。
+     */
+    private static void restrictToOwner(File file) {
+        final boolean succeeded = file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true);
+        if (!succeeded) {
+            System.err.println("警告: キーストアファイルのアクセス権を所有者のみに制限できませんでした: "
+                    + file.getPath());
+        }
+    }
+
+    private static final class CacheKey {
+        private final byte[] passwordMac_;
+
+        private final byte[] salt_;
+
+        private final int iterations_;
+
+        private final int hashCode_;
+
+        CacheKey(byte[] passwordMac, byte[] salt, int iterations) {
+            passwordMac_ = passwordMac;
+            salt_ = salt.clone();
+            iterations_ = iterations;
+            hashCode_ = (Arrays.hashCode(passwordMac_) * 31 + Arrays.hashCode(salt_)) * 31
+                    + iterations_;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode_;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return iterations_ == other.iterations_
+                    && Arrays.equals(passwordMac_, other.passwordMac_)
+                    && Arrays.equals(salt_, other.salt_);
+        }
+    }
+}
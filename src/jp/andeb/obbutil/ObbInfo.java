@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ファイル末尾に付加された OBB 情報です。
+ * <p>
+ * OBB 情報の形式はバージョンごとに {@link FooterCodec} が定義します。いずれの形式でも、末尾は
+ * OBB 情報のサイズとシグネチャからなるタグで終わり、先頭には形式のバージョンが格納されます。
+ */
+public interface ObbInfo {
+
+    /**
+     * OBB 情報の形式のバージョン。この情報を読み書きする {@link FooterCodec#getVersion()} と一致します。
+     */
+    int getFooterVersion();
+
+    String getPackageName();
+
+    int getPackageVersion();
+
+    int getFlags();
+
+    boolean isOverlay();
+
+    boolean isSalted();
+
+    byte[] getSalt();
+
+    /**
+     * 保持している情報を、末尾のタグを含むバイト列に変換します。
+     *
+     * @return 変換されたバイト列を保持する {@link ByteBuffer}。{@code position} が {@code 0}、
+     *         {@code limit} がバイト列のサイズと一致した状態で返されます。
+     */
+    ByteBuffer toBytes();
+
+    void prettyPrint(PrintStream out);
+}
@@ -23,18 +23,21 @@ import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
-public class ObbInfoV1 {
-
-    private static final int OBB_SIGNATURE = 0x01059983;
+public class ObbInfoV1 implements ObbInfo {
 
     public static int FLAG_OVERLAY = (1 << 0);
     public static int FLAG_SALTED = (1 << 1);
 
+    /**
+     * @deprecated {@link FooterCodec#SIGNATURE} を使用してください。
+     */
+    @Deprecated
     public static int getObbSignature() {
-        return OBB_SIGNATURE;
+        return FooterCodec.SIGNATURE;
     }
 
     private final int packageVersion_;
@@ -49,14 +52,14 @@ public class ObbInfoV1 {
 
     public static final int SALT_LENGTH = 8;
 
-    private static final Charset PACKAGE_NAME_ENCODING = Charset.forName("UTF-8");
+    static final Charset PACKAGE_NAME_ENCODING = Charset.forName("UTF-8");
 
     /**
      * 指定された情報で {@link ObbInfoV1} を構築します。
      * 
      * @param flags フラグセット。
      * @param salt ソルト。
-     * @param packageName パッケージ名。
+     * @param packageName パッケージ名。UTF-8 で {@link #MAX_PACKAGE_NAME_SIZE} バイト以下であること。
      * @param packageVersion パッケージバージョン。
      */
     public ObbInfoV1(int flags, byte[] salt, String packageName, int packageVersion) {
@@ -73,10 +76,18 @@ public class ObbInfoV1 {
         if (packageName.isEmpty()) {
             throw new IllegalArgumentException("'packageName' must not be empty.");
         }
+        if (MAX_PACKAGE_NAME_SIZE < packageName.getBytes(PACKAGE_NAME_ENCODING).length) {
+            throw new IllegalArgumentException("'packageName' is too long.");
+        }
         this.packageName_ = packageName;
         this.packageVersion_ = packageVersion;
     }
 
+    @Override
+    public int getFooterVersion() {
+        return INFO_VERSION;
+    }
+
     public String getPackageName() {
         return packageName_;
     }
@@ -121,7 +132,7 @@ public class ObbInfoV1 {
         buffer.putInt(packageNameBytes.length);
         buffer.put(packageNameBytes);
         buffer.putInt(buffer.position());
-        buffer.putInt(OBB_SIGNATURE);
+        buffer.putInt(FooterCodec.SIGNATURE);
         buffer.flip();
         return buffer;
     }
@@ -159,13 +170,24 @@ public class ObbInfoV1 {
         out.println();
     }
 
-    private static final int MAX_BUFFER_SIZE = 32768;
-
     private static final int MINIMUM_INFO_SIZE = 33;
 
-    private static final int TAG_SIZE = 8;
+    /** 読み取り可能な OBB 情報に格納できるパッケージ名の最大バイト数 (UTF-8)。 */
+    public static final int MAX_PACKAGE_NAME_SIZE = FooterCodec.MAX_BUFFER_SIZE
+            - (MINIMUM_INFO_SIZE - FooterCodec.TAG_SIZE - 1);
 
-    public static final class NotObbException extends Exception {
+    /**
+     * バージョン 1 の OBB 情報を解釈するコーデック。{@link FooterCodecRegistry#getDefault()} に登録されています。
+     */
+    public static final FooterCodec CODEC = new Codec();
+
+    /**
+     * {@link #fromFile(File)} などがスローする例外です。
+     *
+     * @deprecated 形式によらず {@link FooterCodec.NotObbException} を捕捉してください。
+     */
+    @Deprecated
+    public static final class NotObbException extends FooterCodec.NotObbException {
         private static final long serialVersionUID = 1L;
 
         public NotObbException(String message) {
@@ -187,73 +209,75 @@ public class ObbInfoV1 {
     public static ObbInfoV1 fromFile(RandomAccessFile obb) throws
             IOException,
             NotObbException {
-        final long fileSize = obb.length();
-        if (fileSize < TAG_SIZE) {
-            throw new NotObbException("too small");
-        }
+        return fromChannel(obb.getChannel());
+    }
 
-        // seek to head of tag
-        obb.seek(fileSize - TAG_SIZE);
-        final int footerSize = readIntLe(obb);
-        final int signature = readIntLe(obb);
-        if (signature != OBB_SIGNATURE) {
-            throw new NotObbException("signature not found");
-        }
-        if (MAX_BUFFER_SIZE < footerSize || footerSize < (MINIMUM_INFO_SIZE - TAG_SIZE)) {
-            throw new NotObbException("invalid footer size");
+    /**
+     * 渡された {@link FileChannel} の末尾から OBB 情報を読み取ります。チャネルの現在位置は変更しません。
+     * <p>
+     * 読み取りは {@link FooterCodecRegistry#getDefault()} を通して行います。バージョン 1 以外の形式の
+     * OBB 情報を読み取るには {@link FooterCodecRegistry#read(FileChannel)} を使用してください。
+     * 
+     * @param obb 読み取り対象のチャネル。
+     * @return 読み取った OBB 情報。
+     * @throws IOException 読み取りに失敗した場合。
+     * @throws NotObbException OBB 情報を保持していない場合、またはバージョン 1 の形式ではない場合。
+     */
+    public static ObbInfoV1 fromChannel(FileChannel obb) throws IOException, NotObbException {
+        final ObbInfo info;
+        try {
+            info = FooterCodecRegistry.getDefault().read(obb);
+        } catch (FooterCodec.NotObbException e) {
+            // 従来どおり ObbInfoV1.NotObbException として捕捉できるようにする
+            throw new NotObbException(e.getMessage());
         }
-
-        // seek to head of footer
-        obb.seek(fileSize - footerSize - TAG_SIZE);
-
-        final int signatureVersion = readIntLe(obb);
-        if (signatureVersion != INFO_VERSION) {
-            throw new NotObbException("unsupported version: " + signatureVersion);
+        if (!(info instanceof ObbInfoV1)) {
+            throw new NotObbException("unsupported version: " + info.getFooterVersion());
         }
-        final int packageVersion = readIntLe(obb);
-        final int flags = readIntLe(obb);
-        final byte[] salt = readBytes(obb, 8);
-        final int packageNameSize = readIntLe(obb);
-        final byte[] packageNameBytes = readBytes(obb, packageNameSize);
-        final String packageName = new String(packageNameBytes, PACKAGE_NAME_ENCODING);
-
-        final ObbInfoV1 info = new ObbInfoV1(flags, salt, packageName, packageVersion);
-        return info;
+        return (ObbInfoV1) info;
     }
 
-    private static int readIntLe(RandomAccessFile target) throws IOException {
-        final int count = (Integer.SIZE / Byte.SIZE);
-        int value = 0;
-        for (int i = 0; i < count; i++) {
-            final int b = target.readUnsignedByte();
-            value |= (b << (i * 8));
+    private static final class Codec implements FooterCodec {
+        Codec() {
         }
-        return value;
-    }
-
-    /**
-     * 渡された {@link RandomAccessFile} の現在の位置から、指定されたバイト数を 読み取ります。
-     * 
-     * @param target 読み取り対象のファイル。
-     * @param count 読み込むバイト数。{@code 0} 以上の値を指定すること。必ず指定されてた
-     *            バイト数を読み取ります。読み取り可能なバイト数が {@code count} で指定された数より
-     *            少ない場合は可能なかぎり読み取った上で {@link IOException} をスローします。
-     * @return 読み取ったバイト列を保持するバイト配列。配列の長さは {@code count} と 一致することが保証されます。
-     * @throws IOException
-     * @Throws IllegalArgumentException
-     */
-    private static byte[] readBytes(RandomAccessFile target, int count) throws IOException {
-        final byte[] bytes = new byte[count];
-        int total = 0;
-        int len;
 
-        while (0 < (len = target.read(bytes, total, count - total))) {
-            total += len;
+        @Override
+        public int getVersion() {
+            return INFO_VERSION;
         }
-        if (total < count) {
-            throw new IOException();
+
+        @Override
+        public ObbInfoV1 decode(ByteBuffer footer) throws FooterCodec.NotObbException {
+            if (footer.remaining() < MINIMUM_INFO_SIZE) {
+                throw new FooterCodec.NotObbException("invalid footer size");
+            }
+            final int signatureVersion = footer.getInt();
+            if (signatureVersion != INFO_VERSION) {
+                throw new FooterCodec.NotObbException("unsupported version: "
+                        + signatureVersion);
+            }
+            final int packageVersion = footer.getInt();
+            final int flags = footer.getInt();
+            final byte[] salt = new byte[SALT_LENGTH];
+            footer.get(salt);
+            final int packageNameSize = footer.getInt();
+            if (packageNameSize <= 0
+                    || footer.remaining() - FooterCodec.TAG_SIZE < packageNameSize) {
+                throw new FooterCodec.NotObbException("invalid package name size: "
+                        + packageNameSize);
+            }
+            final byte[] packageNameBytes = new byte[packageNameSize];
+            footer.get(packageNameBytes);
+            final String packageName = new String(packageNameBytes, PACKAGE_NAME_ENCODING);
+
+            try {
+                final ObbInfoV1 info = new ObbInfoV1(flags, salt, packageName, packageVersion);
+                return info;
+            } catch (IllegalArgumentException e) {
+                // UTF-8 として不正なバイト列は U+FFFD (3 バイト) に置き換えられるため、長さの検査に失敗しうる
+                throw new FooterCodec.NotObbException("invalid package name: " + e.getMessage());
+            }
         }
-        return bytes;
     }
 
     /**
@@ -16,30 +16,66 @@
 
 package jp.andeb.obbutil;
 
+import static jp.andeb.obbutil.CommandLineUtil.DEFAULT_THREADS;
+import static jp.andeb.obbutil.CommandLineUtil.JOBS;
+import static jp.andeb.obbutil.CommandLineUtil.LIST_FILE;
+import static jp.andeb.obbutil.CommandLineUtil.LOCK_POLICY;
 import static jp.andeb.obbutil.CommandLineUtil.OBB_VERSION;
 import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_ADD;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_ARCHIVE;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_DIFF;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_JOIN;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_REMOVE;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_REPAIR;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_RESTORE;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_SCAN;
+import static jp.andeb.obbutil.CommandLineUtil.OPTIONS_FOR_SPLIT;
+import static jp.andeb.obbutil.CommandLineUtil.OUTPUT;
 import static jp.andeb.obbutil.CommandLineUtil.OVERLAY_FLAG;
 import static jp.andeb.obbutil.CommandLineUtil.PACKAGE_NAME;
+import static jp.andeb.obbutil.CommandLineUtil.PART_SIZE;
 import static jp.andeb.obbutil.CommandLineUtil.SALT;
+import static jp.andeb.obbutil.CommandLineUtil.STORE_DIR;
+import static jp.andeb.obbutil.CommandLineUtil.STRIP;
+import static jp.andeb.obbutil.CommandLineUtil.WINDOW_SIZE;
 import static jp.andeb.obbutil.CommandLineUtil.printUsage;
 import static jp.andeb.obbutil.CommandLineUtil.toByteArray;
 import static jp.andeb.obbutil.CommandLineUtil.toInteger;
+import static jp.andeb.obbutil.CommandLineUtil.toLockPolicy;
+import static jp.andeb.obbutil.CommandLineUtil.toSize;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.MissingArgumentException;
 import org.apache.commons.cli.MissingOptionException;
+import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.UnrecognizedOptionException;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
-import jp.andeb.obbutil.ObbInfoV1.NotObbException;
+import jp.andeb.obbutil.FatImage.InvalidImageException;
+import jp.andeb.obbutil.FileLocker.LockUnavailableException;
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+import jp.andeb.obbutil.FooterCodecRegistry.Footer;
+import jp.andeb.obbutil.FooterScanner.FoundFooter;
+import jp.andeb.obbutil.VolumeSplitter.VerificationException;
 
 public class ObbUtilMain {
     
@@ -66,6 +102,20 @@ public class ObbUtilMain {
             succeeded = doRemove(dropFirst(args));
         } else if (matches("info", command)) {
             succeeded = doInfo(dropFirst(args));
+        } else if (matches("scan", command)) {
+            succeeded = doScan(dropFirst(args));
+        } else if (matches("repair", command)) {
+            succeeded = doRepair(dropFirst(args));
+        } else if (matches("split", command)) {
+            succeeded = doSplit(dropFirst(args));
+        } else if (matches("join", command)) {
+            succeeded = doJoin(dropFirst(args));
+        } else if (matches("archive", command)) {
+            succeeded = doArchive(dropFirst(args));
+        } else if (matches("restore", command)) {
+            succeeded = doRestore(dropFirst(args));
+        } else if (matches("diff", command)) {
+            succeeded = doDiff(dropFirst(args));
         } else {
             System.err.println("不明なコマンド: " + command);
             printUsage(PROGNAME);
@@ -75,30 +125,39 @@ public class ObbUtilMain {
         System.exit(succeeded ? 0 : 1);
     }
 
-    private static boolean doAdd(String[] args) {
-        final CommandLine commandLine;
+    /**
+     * コマンドライン引数を解析します。解析に失敗した場合はエラーメッセージと使い方を表示して {@code null} を返します。
+     */
+    private static CommandLine parseCommandLine(Options options, String[] args) {
         try {
             final CommandLineParser parser = new GnuParser();
-            commandLine = parser.parse(OPTIONS_FOR_ADD, args);
+            return parser.parse(options, args);
         } catch (MissingArgumentException e) {
             System.err.println("値が指定されていません: " + e.getOption().getOpt());
-            printUsage(PROGNAME);
-            return false;
         } catch (MissingOptionException e) {
             System.err.println("必須オプションが指定されていません: " + e.getMissingOptions());
-            printUsage(PROGNAME);
-            return false;
         } catch (UnrecognizedOptionException e) {
             System.err.println("不明なオプションです: " + e.getOption());
-            printUsage(PROGNAME);
-            return false;
         } catch (ParseException e) {
             System.err.println(e.getMessage());
-            printUsage(PROGNAME);
+        }
+        printUsage(PROGNAME);
+        return null;
+    }
+
+    private static boolean doAdd(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_ADD, args);
+        if (commandLine == null) {
             return false;
         }
 
         final String pkgName = commandLine.getOptionValue(PACKAGE_NAME.getOpt());
+        if (ObbInfoV1.MAX_PACKAGE_NAME_SIZE < pkgName
+                .getBytes(ObbInfoV1.PACKAGE_NAME_ENCODING).length) {
+            System.err.println("パッケージ名が長すぎます(UTF-8 で最大 " + ObbInfoV1.MAX_PACKAGE_NAME_SIZE
+                    + " バイト)。");
+            return false;
+        }
         final String versionStr = commandLine.getOptionValue(OBB_VERSION.getOpt());
         final Integer version = toInteger(versionStr);
         if (version == null) {
@@ -106,6 +165,10 @@ public class ObbUtilMain {
             printUsage(PROGNAME);
             return false;
         }
+        final FileLocker.Policy lockPolicy = getLockPolicy(commandLine);
+        if (lockPolicy == null) {
+            return false;
+        }
         final boolean isOverlay = commandLine.hasOption(OVERLAY_FLAG.getOpt());
         final String saltStr = commandLine.getOptionValue(SALT.getOpt());
         final byte[] salt;
@@ -132,7 +195,23 @@ public class ObbUtilMain {
             return false;
         }
 
-        final File targetFile = new File(nonRecognizedArgs[0]);
+        int flag = 0;
+        if (isOverlay) {
+            flag |= ObbInfoV1.FLAG_OVERLAY;
+        }
+        if (salt != null) {
+            flag |= ObbInfoV1.FLAG_SALTED;
+        }
+        final ObbInfoV1 obbInfo = new ObbInfoV1(flag, salt,
+                pkgName,
+                version.intValue());
+        return addObbInfo(new File(nonRecognizedArgs[0]), obbInfo, lockPolicy);
+    }
+
+    /**
+     * ファイルをロックし、OBB 情報を保持していないことを確認してから OBB 情報を付加します。
+     */
+    static boolean addObbInfo(File targetFile, ObbInfo obbInfo, FileLocker.Policy lockPolicy) {
         final RandomAccessFile targetRaFile;
         try {
             targetRaFile = new RandomAccessFile(targetFile, "rw");
@@ -141,33 +220,32 @@ public class ObbUtilMain {
             return false;
         }
         try {
-            try {
-                final ObbInfoV1 info = ObbInfoV1.fromFile(targetRaFile);
-                System.err.println("対象ファイルは既に OBB 情報を保持しています: " + info.toString());
+            final FileLocker lock = lock(targetFile, targetRaFile, lockPolicy);
+            if (lock == null) {
                 return false;
-            } catch (IOException e) {
-                System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
-                return false;
-            } catch (NotObbException e) {
-                // 正常系
             }
+            try {
+                try {
+                    final ObbInfo info = FooterCodecRegistry.getDefault().read(
+                            targetRaFile.getChannel());
+                    System.err.println("対象ファイルは既に OBB 情報を保持しています: " + info.toString());
+                    return false;
+                } catch (IOException e) {
+                    System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
+                    return false;
+                } catch (NotObbException e) {
+                    // 正常系
+                }
 
-            int flag = 0;
-            if (isOverlay) {
-                flag |= ObbInfoV1.FLAG_OVERLAY;
+                final ByteBuffer obbInfoBytes = obbInfo.toBytes();
+                // 書き込み
+                targetRaFile.setLength(targetRaFile.length() + obbInfoBytes.remaining());
+                targetRaFile.seek(targetRaFile.length() - obbInfoBytes.remaining());
+                targetRaFile.write(obbInfoBytes.array(), obbInfoBytes.arrayOffset(),
+                        obbInfoBytes.remaining());
+            } finally {
+                lock.release();
             }
-            if (salt != null) {
-                flag |= ObbInfoV1.FLAG_SALTED;
-            }
-            final ObbInfoV1 obbInfo = new ObbInfoV1(flag, salt,
-                    pkgName,
-                    version.intValue());
-            final ByteBuffer obbInfoBytes = obbInfo.toBytes();
-            // 書き込み
-            targetRaFile.setLength(targetRaFile.length() + obbInfoBytes.remaining());
-            targetRaFile.seek(targetRaFile.length() - obbInfoBytes.remaining());
-            targetRaFile.write(obbInfoBytes.array(), obbInfoBytes.arrayOffset(),
-                    obbInfoBytes.remaining());
         } catch (IOException e) {
             System.err.println("OBB 情報の書き込みに失敗しました: " + targetFile.getPath());
             return false;
@@ -184,11 +262,26 @@ public class ObbUtilMain {
     }
 
     private static boolean doRemove(String[] args) {
-        if (args.length != 1) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_REMOVE, args);
+        if (commandLine == null) {
+            return false;
+        }
+        final FileLocker.Policy lockPolicy = getLockPolicy(commandLine);
+        if (lockPolicy == null) {
+            return false;
+        }
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 1) {
             printUsage(PROGNAME);
             return false;
         }
-        final File targetFile = new File(args[0]);
+        return removeObbInfo(new File(nonRecognizedArgs[0]), lockPolicy);
+    }
+
+    /**
+     * ファイルをロックし、OBB 情報を読み取ってからその分だけファイルを切り詰めます。
+     */
+    static boolean removeObbInfo(File targetFile, FileLocker.Policy lockPolicy) {
         final RandomAccessFile targetRaFile;
         try {
             targetRaFile = new RandomAccessFile(targetFile, "rw");
@@ -197,19 +290,27 @@ public class ObbUtilMain {
             return false;
         }
         try {
-            final ObbInfoV1 obbInfo;
-            try {
-                obbInfo = ObbInfoV1.fromFile(targetRaFile);
-            } catch (IOException e) {
-                System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
-                return false;
-            } catch (NotObbException e) {
-                System.err.println("対象ファイルは OBB 情報を保持していません: " + targetFile.getPath());
+            final FileLocker lock = lock(targetFile, targetRaFile, lockPolicy);
+            if (lock == null) {
                 return false;
             }
+            try {
+                final Footer footer;
+                try {
+                    footer = FooterCodecRegistry.getDefault().readFooter(
+                            targetRaFile.getChannel());
+                } catch (IOException e) {
+                    System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
+                    return false;
+                } catch (NotObbException e) {
+                    System.err.println("対象ファイルは OBB 情報を保持していません: " + targetFile.getPath());
+                    return false;
+                }
 
-            final ByteBuffer obbInfoBytes = obbInfo.toBytes();
-            targetRaFile.setLength(targetRaFile.length() - obbInfoBytes.remaining());
+                targetRaFile.setLength(targetRaFile.length() - footer.getLength());
+            } finally {
+                lock.release();
+            }
         } catch (IOException e) {
             System.err.println("OBB 情報の削除に失敗しました: " + targetFile.getPath());
             return false;
@@ -233,7 +334,7 @@ public class ObbUtilMain {
         }
         final File targetFile = new File(args[0]);
         try {
-            final ObbInfoV1 info = ObbInfoV1.fromFile(targetFile);
+            final ObbInfo info = FooterCodecRegistry.getDefault().read(targetFile);
             System.out.println("OBB info for " + targetFile.getPath() + ":");
             info.prettyPrint(System.out);
         } catch (FileNotFoundException e) {
@@ -250,6 +351,625 @@ public class ObbUtilMain {
         return true;
     }
 
+    private static boolean doScan(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_SCAN, args);
+        if (commandLine == null) {
+            return false;
+        }
+
+        final String jobsStr = commandLine.getOptionValue(JOBS.getOpt(),
+                String.valueOf(CatalogScanner.DEFAULT_MAX_IN_FLIGHT));
+        final Integer jobs = toInteger(jobsStr);
+        if (jobs == null || jobs.intValue() <= 0) {
+            System.err.println("同時読み取り数が不正です: " + jobsStr);
+            printUsage(PROGNAME);
+            return false;
+        }
+        final String listPath = commandLine.getOptionValue(LIST_FILE.getOpt());
+        final String[] targetPaths = commandLine.getArgs();
+        if (targetPaths.length == 0 && listPath == null) {
+            System.err.println("ファイル名が指定されていません。");
+            printUsage(PROGNAME);
+            return false;
+        }
+
+        final Writer out;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 65536);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        final CatalogScanner scanner = new CatalogScanner(jobs.intValue(), out);
+        boolean submitted = false;
+        try {
+            for (String path : targetPaths) {
+                scanner.submit(new File(path));
+            }
+            if (listPath != null) {
+                final BufferedReader list;
+                if (listPath.equals("-")) {
+                    list = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+                } else {
+                    list = new BufferedReader(new InputStreamReader(new FileInputStream(listPath),
+                            "UTF-8"));
+                }
+                try {
+                    String path;
+                    while ((path = list.readLine()) != null) {
+                        if (!path.isEmpty()) {
+                            scanner.submit(new File(path));
+                        }
+                    }
+                } finally {
+                    list.close();
+                }
+            }
+            submitted = true;
+        } catch (IOException e) {
+            System.err.println("ファイル一覧の読み取りに失敗しました: " + listPath);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("スキャンが中断されました。");
+        }
+
+        final int failedCount;
+        try {
+            failedCount = scanner.finish();
+        } catch (IOException e) {
+            System.err.println("スキャン結果の出力に失敗しました。");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("スキャンが中断されました。");
+            return false;
+        }
+        System.err.println("スキャンが完了しました: " + scanner.getSubmittedCount() + " ファイル中 "
+                + failedCount + " ファイルで OBB 情報を取得できませんでした。");
+        return submitted;
+    }
+
+    private static boolean doRepair(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_REPAIR, args);
+        if (commandLine == null) {
+            return false;
+        }
+
+        final String windowStr = commandLine.getOptionValue(WINDOW_SIZE.getOpt(),
+                String.valueOf(FooterScanner.DEFAULT_WINDOW_MB));
+        final Integer windowMb = toInteger(windowStr);
+        if (windowMb == null || windowMb.intValue() <= 0 || 2047 < windowMb.intValue()) {
+            System.err.println("検索サイズが不正です: " + windowStr);
+            printUsage(PROGNAME);
+            return false;
+        }
+        final boolean strip = commandLine.hasOption(STRIP.getOpt());
+        final FileLocker.Policy lockPolicy = getLockPolicy(commandLine);
+        if (lockPolicy == null) {
+            return false;
+        }
+
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 1) {
+            printUsage(PROGNAME);
+            return false;
+        }
+
+        final File targetFile = new File(nonRecognizedArgs[0]);
+        final RandomAccessFile targetRaFile;
+        try {
+            targetRaFile = new RandomAccessFile(targetFile, strip ? "rw" : "r");
+        } catch (FileNotFoundException e) {
+            System.err.println("対象ファイルが開けません: " + targetFile.getPath());
+            return false;
+        }
+        FileLocker lock = null;
+        try {
+            if (strip) {
+                // 検索から切り詰めまでの間に他の処理がファイルを変更しないようにする
+                try {
+                    lock = lock(targetFile, targetRaFile, lockPolicy);
+                } catch (IOException e) {
+                    System.err.println("対象ファイルをロックできません: " + targetFile.getPath());
+                    return false;
+                }
+                if (lock == null) {
+                    return false;
+                }
+            }
+            final long fileSize;
+            final List<FoundFooter> footers;
+            try {
+                fileSize = targetRaFile.length();
+                footers = FooterScanner.scan(targetRaFile.getChannel(),
+                        windowMb.longValue() * 1024 * 1024);
+            } catch (IOException e) {
+                System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
+                return false;
+            }
+
+            System.out.println("OBB footers in " + targetFile.getPath() + " (" + fileSize
+                    + " bytes):");
+            for (FoundFooter footer : footers) {
+                final ObbInfo info = footer.getInfo();
+                System.out.println("  offset=" + footer.getOffset() + " length="
+                        + footer.getLength() + " end=" + footer.getEnd() + " package="
+                        + info.getPackageName() + " version=" + info.getPackageVersion()
+                        + " flags=0x" + Long.toHexString(info.getFlags() & 0xffffffffL));
+            }
+            if (footers.isEmpty()) {
+                System.err.println("OBB 情報が見つかりませんでした: " + targetFile.getPath());
+                return false;
+            }
+
+            final long repairedLength;
+            try {
+                repairedLength = FooterScanner.findRepairedLength(targetRaFile.getChannel(),
+                        footers);
+            } catch (IOException e) {
+                System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
+                return false;
+            }
+            if (repairedLength < 0) {
+                if (footers.get(footers.size() - 1).getEnd() == fileSize) {
+                    System.err.println("余分な OBB 情報はありません: " + targetFile.getPath());
+                    return true;
+                }
+                System.err.println("OBB 情報の後ろに不明なデータが続いているため、修復できません: "
+                        + targetFile.getPath());
+                return false;
+            }
+            System.err.println("末尾の " + (fileSize - repairedLength)
+                    + " バイトは余分な OBB 情報または不完全なデータです。");
+            if (!strip) {
+                System.err.println("削除するには -s オプションを指定してください。");
+                return true;
+            }
+            try {
+                targetRaFile.setLength(repairedLength);
+            } catch (IOException e) {
+                System.err.println("OBB 情報の削除に失敗しました: " + targetFile.getPath());
+                return false;
+            }
+        } finally {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                targetRaFile.close();
+            } catch (IOException e) {
+                System.err.println("対象ファイルを閉じることができませんでした: " + targetFile.getPath());
+                return false;
+            }
+        }
+        System.err.println("余分な OBB 情報の削除が正常に完了しました: " + targetFile.getPath());
+        return true;
+    }
+
+    private static boolean doSplit(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_SPLIT, args);
+        if (commandLine == null) {
+            return false;
+        }
+
+        final String partSizeStr = commandLine.getOptionValue(PART_SIZE.getOpt());
+        final Long partSize = toSize(partSizeStr);
+        if (partSize == null) {
+            System.err.println("パートのサイズが不正です: " + partSizeStr);
+            printUsage(PROGNAME);
+            return false;
+        }
+        final Integer threads = getThreads(commandLine);
+        if (threads == null) {
+            return false;
+        }
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 1) {
+            printUsage(PROGNAME);
+            return false;
+        }
+
+        final File targetFile = new File(nonRecognizedArgs[0]);
+        try {
+            FooterCodecRegistry.getDefault().read(targetFile);
+        } catch (FileNotFoundException e) {
+            System.err.println("対象ファイルを開けません: " + targetFile.getPath());
+            return false;
+        } catch (IOException e) {
+            System.err.println("対象ファイルの読み取りに失敗しました: " + targetFile.getPath());
+            return false;
+        } catch (NotObbException e) {
+            System.err.println("対象ファイルは OBB 情報を保持していません: " + targetFile.getPath());
+            return false;
+        }
+        if (VolumeSplitter.MAX_PART_COUNT < VolumeSplitter.getPartCount(targetFile.length(),
+                partSize.longValue())) {
+            System.err.println("パートの数が多すぎます(" + VolumeSplitter.MAX_PART_COUNT
+                    + " 個まで)。パートのサイズを大きくしてください: " + partSizeStr);
+            return false;
+        }
+
+        final File manifest;
+        try {
+            manifest = VolumeSplitter.split(targetFile, partSize.longValue(), threads.intValue());
+        } catch (IllegalArgumentException e) {
+            System.err.println("ファイルを分割できません: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            System.err.println("ファイルの分割に失敗しました: " + targetFile.getPath());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ファイルの分割が中断されました: " + targetFile.getPath());
+            return false;
+        }
+        System.err.println("ファイルの分割が正常に完了しました: " + manifest.getPath());
+        return true;
+    }
+
+    private static boolean doJoin(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_JOIN, args);
+        if (commandLine == null) {
+            return false;
+        }
+
+        final Integer threads = getThreads(commandLine);
+        if (threads == null) {
+            return false;
+        }
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 1) {
+            printUsage(PROGNAME);
+            return false;
+        }
+        final File manifest = new File(nonRecognizedArgs[0]);
+        String outputPath = commandLine.getOptionValue(OUTPUT.getOpt());
+        if (outputPath == null) {
+            if (!manifest.getPath().endsWith(VolumeSplitter.MANIFEST_SUFFIX)) {
+                System.err.println("出力先ファイルが指定されていません。");
+                printUsage(PROGNAME);
+                return false;
+            }
+            outputPath = manifest.getPath().substring(0,
+                    manifest.getPath().length() - VolumeSplitter.MANIFEST_SUFFIX.length());
+        }
+        final File outputFile = new File(outputPath);
+        if (outputFile.exists()) {
+            System.err.println("出力先ファイルが既に存在します: " + outputFile.getPath());
+            return false;
+        }
+
+        final ObbInfo info;
+        try {
+            info = VolumeSplitter.join(manifest, outputFile, threads.intValue());
+        } catch (FileNotFoundException e) {
+            System.err.println("ファイルを開けません: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            System.err.println("ファイルの結合に失敗しました: " + outputFile.getPath());
+            return false;
+        } catch (VerificationException e) {
+            System.err.println("パートの検証に失敗しました: " + e.getMessage());
+            return false;
+        } catch (NotObbException e) {
+            System.err.println("結合したファイルは OBB 情報を保持していません: " + outputFile.getPath());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ファイルの結合が中断されました: " + outputFile.getPath());
+            return false;
+        }
+        System.out.println("OBB info for " + outputFile.getPath() + ":");
+        info.prettyPrint(System.out);
+        System.err.println("ファイルの結合が正常に完了しました: " + outputFile.getPath());
+        return true;
+    }
+
+    private static boolean doArchive(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_ARCHIVE, args);
+        if (commandLine == null) {
+            return false;
+        }
+        final Integer threads = getThreads(commandLine);
+        if (threads == null) {
+            return false;
+        }
+
+        final File storeDir = new File(commandLine.getOptionValue(STORE_DIR.getOpt()));
+        final ChunkStore store;
+        try {
+            store = new ChunkStore(storeDir);
+        } catch (LockUnavailableException e) {
+            System.err.println("チャンクストアは他の処理が使用中です: " + storeDir.getPath());
+            return false;
+        } catch (IOException e) {
+            System.err.println("チャンクストアを開けません: " + storeDir.getPath());
+            return false;
+        }
+        try {
+            for (String path : commandLine.getArgs()) {
+                final File targetFile = new File(path);
+                final ChunkStore.TransferStats stats;
+                try {
+                    stats = store.store(targetFile, targetFile.getName(), threads.intValue());
+                } catch (FileNotFoundException e) {
+                    System.err.println("対象ファイルを開けません: " + targetFile.getPath());
+                    return false;
+                } catch (IOException e) {
+                    System.err.println("ファイルの保存に失敗しました: " + targetFile.getPath());
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.err.println("ファイルの保存が中断されました: " + targetFile.getPath());
+                    return false;
+                }
+                System.out.println("Archived " + targetFile.getName() + ": " + stats.getBytes()
+                        + " bytes, " + stats.getChunkCount() + " chunks, new "
+                        + stats.getNewBytes() + " bytes in " + stats.getNewChunkCount()
+                        + " chunks, " + String.format("%.1f", stats.getMegabytesPerSecond())
+                        + " MB/s");
+            }
+            System.out.println("Store " + storeDir.getPath() + ": " + store.getChunkCount()
+                    + " chunks, " + store.getStoredSize() + " bytes stored, "
+                    + store.getLogicalSize() + " bytes archived, dedup ratio "
+                    + String.format("%.2f", store.getDedupRatio()));
+        } catch (IOException e) {
+            System.err.println("チャンクストアの読み取りに失敗しました: " + storeDir.getPath());
+            return false;
+        } finally {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("チャンクストアの書き込みに失敗しました: " + storeDir.getPath());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean doRestore(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_RESTORE, args);
+        if (commandLine == null) {
+            return false;
+        }
+        final Integer threads = getThreads(commandLine);
+        if (threads == null) {
+            return false;
+        }
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 2) {
+            printUsage(PROGNAME);
+            return false;
+        }
+        final String name = nonRecognizedArgs[0];
+        if (name.isEmpty() || !name.equals(new File(name).getName()) || name.startsWith(".")) {
+            System.err.println("名前が不正です: " + name);
+            return false;
+        }
+        final File outputFile = new File(nonRecognizedArgs[1]);
+        if (outputFile.exists()) {
+            System.err.println("出力先ファイルが既に存在します: " + outputFile.getPath());
+            return false;
+        }
+
+        final File storeDir = new File(commandLine.getOptionValue(STORE_DIR.getOpt()));
+        if (!storeDir.isDirectory()) {
+            System.err.println("チャンクストアが存在しません: " + storeDir.getPath());
+            return false;
+        }
+        final ChunkStore store;
+        try {
+            store = new ChunkStore(storeDir);
+        } catch (LockUnavailableException e) {
+            System.err.println("チャンクストアは他の処理が使用中です: " + storeDir.getPath());
+            return false;
+        } catch (IOException e) {
+            System.err.println("チャンクストアを開けません: " + storeDir.getPath());
+            return false;
+        }
+        final ChunkStore.TransferStats stats;
+        try {
+            try {
+                stats = store.restore(name, outputFile, threads.intValue());
+            } finally {
+                store.close();
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("チャンクストアに保存されていません: " + name);
+            return false;
+        } catch (IOException e) {
+            System.err.println("ファイルの復元に失敗しました: " + outputFile.getPath());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ファイルの復元が中断されました: " + outputFile.getPath());
+            return false;
+        }
+
+        final ObbInfo info;
+        try {
+            info = FooterCodecRegistry.getDefault().read(outputFile);
+        } catch (IOException e) {
+            System.err.println("復元したファイルの読み取りに失敗しました: " + outputFile.getPath());
+            return false;
+        } catch (NotObbException e) {
+            System.err.println("復元したファイルは OBB 情報を保持していません: " + outputFile.getPath());
+            return false;
+        }
+        System.out.println("OBB info for " + outputFile.getPath() + ":");
+        info.prettyPrint(System.out);
+        System.err.println("ファイルの復元が正常に完了しました: " + outputFile.getPath() + " ("
+                + stats.getBytes() + " bytes, " + stats.getChunkCount() + " chunks, "
+                + String.format("%.1f", stats.getMegabytesPerSecond()) + " MB/s)");
+        return true;
+    }
+
+    private static boolean doDiff(String[] args) {
+        final CommandLine commandLine = parseCommandLine(OPTIONS_FOR_DIFF, args);
+        if (commandLine == null) {
+            return false;
+        }
+        final Integer threads = getThreads(commandLine);
+        if (threads == null) {
+            return false;
+        }
+        final String[] nonRecognizedArgs = commandLine.getArgs();
+        if (nonRecognizedArgs.length != 2) {
+            printUsage(PROGNAME);
+            return false;
+        }
+
+        final File baseFile = new File(nonRecognizedArgs[0]);
+        final File overlayFile = new File(nonRecognizedArgs[1]);
+        final RandomAccessFile baseRaFile;
+        final RandomAccessFile overlayRaFile;
+        try {
+            baseRaFile = new RandomAccessFile(baseFile, "r");
+        } catch (FileNotFoundException e) {
+            System.err.println("対象ファイルが開けません: " + baseFile.getPath());
+            return false;
+        }
+        try {
+            try {
+                overlayRaFile = new RandomAccessFile(overlayFile, "r");
+            } catch (FileNotFoundException e) {
+                System.err.println("対象ファイルが開けません: " + overlayFile.getPath());
+                return false;
+            }
+            try {
+                return doDiff(baseFile, baseRaFile, overlayFile, overlayRaFile,
+                        threads.intValue());
+            } finally {
+                overlayRaFile.close();
+            }
+        } catch (IOException e) {
+            System.err.println("対象ファイルの読み取りに失敗しました。");
+            return false;
+        } finally {
+            try {
+                baseRaFile.close();
+            } catch (IOException e) {
+                // 読み取り専用のため無視する
+            }
+        }
+    }
+
+    private static boolean doDiff(File baseFile, RandomAccessFile baseRaFile, File overlayFile,
+            RandomAccessFile overlayRaFile, int threads) throws IOException {
+        final Footer baseFooter;
+        final Footer overlayFooter;
+        try {
+            baseFooter = FooterCodecRegistry.getDefault().readFooter(baseRaFile.getChannel());
+        } catch (NotObbException e) {
+            System.err.println("対象ファイルは OBB 情報を保持していません: " + baseFile.getPath());
+            return false;
+        }
+        try {
+            overlayFooter = FooterCodecRegistry.getDefault().readFooter(
+                    overlayRaFile.getChannel());
+        } catch (NotObbException e) {
+            System.err.println("対象ファイルは OBB 情報を保持していません: " + overlayFile.getPath());
+            return false;
+        }
+        final ObbInfo baseInfo = baseFooter.getInfo();
+        final ObbInfo overlayInfo = overlayFooter.getInfo();
+        if (!baseInfo.getPackageName().equals(overlayInfo.getPackageName())) {
+            System.err.println("パッケージ名が一致しません: " + baseInfo.getPackageName() + ", "
+                    + overlayInfo.getPackageName());
+            return false;
+        }
+        if (baseInfo.isOverlay()) {
+            System.err.println("警告: ベースファイルにオーバーレイフラグがセットされています: " + baseFile.getPath());
+        }
+        if (!overlayInfo.isOverlay()) {
+            System.err.println("警告: オーバーレイファイルにオーバーレイフラグがセットされていません: "
+                    + overlayFile.getPath());
+        }
+
+        final List<OverlayAnalyzer.Change> changes;
+        try {
+            final FatImage base = new FatImage(baseRaFile.getChannel(), baseRaFile.length()
+                    - baseFooter.getLength());
+            final FatImage overlay = new FatImage(overlayRaFile.getChannel(),
+                    overlayRaFile.length() - overlayFooter.getLength());
+            changes = OverlayAnalyzer.analyze(base, overlay, threads);
+        } catch (InvalidImageException e) {
+            System.err.println("FAT ファイルシステムとして読み取れません: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("比較が中断されました。");
+            return false;
+        }
+
+        final Map<OverlayAnalyzer.Kind, long[]> totals = new EnumMap<OverlayAnalyzer.Kind, long[]>(
+                OverlayAnalyzer.Kind.class);
+        for (OverlayAnalyzer.Kind kind : OverlayAnalyzer.Kind.values()) {
+            totals.put(kind, new long[3]);
+        }
+        System.out.println("Overlay analysis for " + baseInfo.getPackageName() + ": "
+                + baseFile.getPath() + " (version " + baseInfo.getPackageVersion() + ") <- "
+                + overlayFile.getPath() + " (version " + overlayInfo.getPackageVersion() + ")");
+        for (OverlayAnalyzer.Change change : changes) {
+            System.out.println(String.format("  %-9s %12s %12s  %s",
+                    change.getKind().name().toLowerCase(Locale.ENGLISH),
+                    sizeToString(change.getBaseSize()), sizeToString(change.getOverlaySize()),
+                    change.getPath()));
+            final long[] total = totals.get(change.getKind());
+            total[0]++;
+            total[1] += Math.max(0, change.getBaseSize());
+            total[2] += Math.max(0, change.getOverlaySize());
+        }
+        // replaced と added のオーバーレイ側の合計が、パッチ OBB に格納するファイルのサイズになる
+        for (OverlayAnalyzer.Kind kind : OverlayAnalyzer.Kind.values()) {
+            final long[] total = totals.get(kind);
+            System.out.println(String.format(
+                    "%-9s %6d files %14d bytes in base %14d bytes in overlay",
+                    kind.name().toLowerCase(Locale.ENGLISH), Long.valueOf(total[0]),
+                    Long.valueOf(total[1]), Long.valueOf(total[2])));
+        }
+        return true;
+    }
+
+    private static String sizeToString(long size) {
+        return (size < 0) ? "-" : String.valueOf(size);
+    }
+
+    /**
+     * ファイルの排他ロックを取得します。{@link FileLocker.Policy#FAIL} でロックを取得できなかった場合は
+     * エラーメッセージを表示して {@code null} を返します。
+     */
+    private static FileLocker lock(File targetFile, RandomAccessFile targetRaFile,
+            FileLocker.Policy lockPolicy) throws IOException {
+        try {
+            return FileLocker.acquire(targetFile, targetRaFile.getChannel(), lockPolicy);
+        } catch (LockUnavailableException e) {
+            System.err.println("他の処理が対象ファイルを変更中です: " + targetFile.getPath());
+            return null;
+        }
+    }
+
+    private static FileLocker.Policy getLockPolicy(CommandLine commandLine) {
+        final String policyStr = commandLine.getOptionValue(LOCK_POLICY.getOpt());
+        final FileLocker.Policy policy = toLockPolicy(policyStr);
+        if (policy == null) {
+            System.err.println("ロック時の動作が不正です: " + policyStr);
+            printUsage(PROGNAME);
+        }
+        return policy;
+    }
+
+    private static Integer getThreads(CommandLine commandLine) {
+        final String threadsStr = commandLine.getOptionValue(JOBS.getOpt(),
+                String.valueOf(DEFAULT_THREADS));
+        final Integer threads = toInteger(threadsStr);
+        if (threads == null || threads.intValue() <= 0) {
+            System.err.println("スレッド数が不正です: " + threadsStr);
+            printUsage(PROGNAME);
+            return null;
+        }
+        return threads;
+    }
+
     static String[] dropFirst(String[] source) {
         if (source == null || source.length == 0) {
             return source;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.andeb.obbutil.FatImage.Entry;
+import jp.andeb.obbutil.FatImage.InvalidImageException;
+
+/**
+ * ベースとなる OBB ファイルと、それに重ねるオーバーレイ OBB ファイルのファイル構成を比較します。
+ * <p>
+ * 両方に存在するファイルのうち、サイズが同じものについてのみ内容のハッシュ値を並行して計算します。
+ * FAT はファイル名の大文字小文字を区別しないため、パスの比較も大文字小文字を区別せずに行います。
+ */
+public class OverlayAnalyzer {
+
+    /**
+     * オーバーレイがファイルに与える影響の種類です。
+     */
+    public enum Kind {
+        /** オーバーレイがベースと異なる内容で置き換えるファイル。 */
+        REPLACED,
+        /** オーバーレイにのみ存在するファイル。 */
+        ADDED,
+        /** オーバーレイがベースと同じ内容で重複して保持しているファイル。パッチから取り除くことができます。 */
+        IDENTICAL,
+        /** ベースにのみ存在し、オーバーレイの影響を受けないファイル。 */
+        UNTOUCHED
+    }
+
+    /**
+     * 1 ファイル分の比較結果です。
+     */
+    public static final class Change {
+        private final Kind kind_;
+
+        private final String path_;
+
+        private final long baseSize_;
+
+        private final long overlaySize_;
+
+        Change(Kind kind, String path, long baseSize, long overlaySize) {
+            kind_ = kind;
+            path_ = path;
+            baseSize_ = baseSize;
+            overlaySize_ = overlaySize;
+        }
+
+        public Kind getKind() {
+            return kind_;
+        }
+
+        public String getPath() {
+            return path_;
+        }
+
+        /** ベース中のサイズ。ベースに存在しない場合は {@code -1}。 */
+        public long getBaseSize() {
+            return baseSize_;
+        }
+
+        /** オーバーレイ中のサイズ。オーバーレイに存在しない場合は {@code -1}。 */
+        public long getOverlaySize() {
+            return overlaySize_;
+        }
+    }
+
+    private OverlayAnalyzer() {
+    }
+
+    /**
+     * ベースとオーバーレイを比較します。
+     *
+     * @param base ベースのイメージ。
+     * @param overlay オーバーレイのイメージ。
+     * @param threads ハッシュ値の計算に使用するスレッド数。正数であること。
+     * @return 比較結果のリスト。パスの順に並びます。
+     * @throws InvalidImageException イメージのファイルシステムが壊れている場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public static List<Change> analyze(final FatImage base, final FatImage overlay, int threads)
+            throws InvalidImageException, InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final Map<String, Entry> baseEntries = toMap(base.listFiles());
+        final Map<String, Entry> overlayEntries = toMap(overlay.listFiles());
+
+        final List<Change> result = new ArrayList<Change>();
+        final List<Entry[]> candidates = new ArrayList<Entry[]>();
+        for (Map.Entry<String, Entry> e : overlayEntries.entrySet()) {
+            final Entry overlayEntry = e.getValue();
+            final Entry baseEntry = baseEntries.get(e.getKey());
+            if (baseEntry == null) {
+                result.add(new Change(Kind.ADDED, overlayEntry.getPath(), -1, overlayEntry
+                        .getSize()));
+            } else if (baseEntry.getSize() != overlayEntry.getSize()) {
+                result.add(new Change(Kind.REPLACED, overlayEntry.getPath(), baseEntry.getSize(),
+                        overlayEntry.getSize()));
+            } else {
+                candidates.add(new Entry[] {
+                        baseEntry, overlayEntry
+                });
+            }
+        }
+        for (Map.Entry<String, Entry> e : baseEntries.entrySet()) {
+            if (!overlayEntries.containsKey(e.getKey())) {
+                final Entry baseEntry = e.getValue();
+                result.add(new Change(Kind.UNTOUCHED, baseEntry.getPath(), baseEntry.getSize(),
+                        -1));
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+                    candidates.size());
+            for (final Entry[] pair : candidates) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws InvalidImageException {
+                        return Boolean.valueOf(Arrays.equals(hash(base, pair[0]), hash(overlay,
+                                pair[1])));
+                    }
+                }));
+            }
+            for (int index = 0; index < candidates.size(); index++) {
+                final Entry overlayEntry = candidates.get(index)[1];
+                final boolean identical = getResult(futures.get(index)).booleanValue();
+                result.add(new Change(identical ? Kind.IDENTICAL : Kind.REPLACED, overlayEntry
+                        .getPath(), overlayEntry.getSize(), overlayEntry.getSize()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Collections.sort(result, new Comparator<Change>() {
+            @Override
+            public int compare(Change lhs, Change rhs) {
+                return lhs.getPath().compareToIgnoreCase(rhs.getPath());
+            }
+        });
+        return result;
+    }
+
+    private static Map<String, Entry> toMap(List<Entry> entries) {
+        final Map<String, Entry> map = new LinkedHashMap<String, Entry>();
+        for (Entry entry : entries) {
+            map.put(entry.getPath().toLowerCase(Locale.ENGLISH), entry);
+        }
+        return map;
+    }
+
+    private static byte[] hash(FatImage image, Entry entry) throws InvalidImageException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        image.digest(entry, digest);
+        return digest.digest();
+    }
+
+    private static Boolean getResult(Future<Boolean> future) throws InvalidImageException,
+            InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof InvalidImageException) {
+                throw (InvalidImageException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
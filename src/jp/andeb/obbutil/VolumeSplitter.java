@@ -0,0 +1,371 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OBB ファイルを固定サイズの複数のファイル (パート) に分割し、また元のファイルに結合します。
+ * <p>
+ * 分割時には各パートの SHA-256 ハッシュ値を {@code sha256sum} 互換の形式でマニフェストファイルに
+ * 書き出します。マニフェストファイルの名前は元のファイル名に {@value #MANIFEST_SUFFIX} を付けたもので、
+ * パートのファイル名は元のファイル名に {@code .001} から始まる連番を付けたもので、パートの数は
+ * {@value #MAX_PART_COUNT} 個までです。
+ */
+public class VolumeSplitter {
+
+    public static final String MANIFEST_SUFFIX = ".sha256";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** パートの数の上限。パートの連番は 3 桁で表す。 */
+    public static final int MAX_PART_COUNT = 999;
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * パートのハッシュ値が一致しない場合などにスローされる例外です。
+     */
+    public static final class VerificationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public VerificationException(String message) {
+            super(message);
+        }
+    }
+
+    private VolumeSplitter() {
+    }
+
+    /**
+     * 分割した場合のパートの数を求めます。空のファイルは 1 パートになります。
+     *
+     * @param sourceSize 分割対象のファイルのバイト数。
+     * @param partSize 1 パートあたりの最大バイト数。正数であること。
+     * @return パートの数。{@value #MAX_PART_COUNT} を超える場合もそのまま返します。
+     */
+    public static long getPartCount(long sourceSize, long partSize) {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("'partSize' must be positive number.");
+        }
+        return Math.max(1, sourceSize / partSize + ((sourceSize % partSize == 0) ? 0 : 1));
+    }
+
+    /**
+     * ファイルを分割します。パートの書き込みとハッシュ値の計算は複数のスレッドで並行して行います。
+     * 失敗した場合は、書きかけのパートとマニフェストファイルを削除します。
+     *
+     * @param source 分割対象のファイル。
+     * @param partSize 1 パートあたりの最大バイト数。正数であること。
+     * @param threads 使用するスレッド数。正数であること。
+     * @return 書き出したマニフェストファイル。
+     * @throws IllegalArgumentException パートの数が {@value #MAX_PART_COUNT} を超える場合。
+     * @throws IOException 読み書きに失敗した場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public static File split(File source, final long partSize, int threads) throws IOException,
+            InterruptedException {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("'partSize' must be positive number.");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final RandomAccessFile sourceRaFile = new RandomAccessFile(source, "r");
+        try {
+            final FileChannel sourceChannel = sourceRaFile.getChannel();
+            final long sourceSize = sourceChannel.size();
+            final long count = getPartCount(sourceSize, partSize);
+            if (MAX_PART_COUNT < count) {
+                throw new IllegalArgumentException("too many parts: " + count);
+            }
+            final int partCount = (int) count;
+
+            final File manifest = new File(source.getPath() + MANIFEST_SUFFIX);
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<String>> futures = new ArrayList<Future<String>>(partCount);
+            boolean succeeded = false;
+            try {
+                for (int index = 0; index < partCount; index++) {
+                    final long offset = index * partSize;
+                    final long length = Math.min(partSize, sourceSize - offset);
+                    final File part = partFile(source, index);
+                    futures.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            return writePart(sourceChannel, offset, length, part);
+                        }
+                    }));
+                }
+
+                final Writer out = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+                try {
+                    for (int index = 0; index < partCount; index++) {
+                        out.write(getResult(futures.get(index)) + "  "
+                                + partFile(source, index).getName() + "\n");
+                    }
+                } finally {
+                    out.close();
+                }
+                succeeded = true;
+                return manifest;
+            } finally {
+                executor.shutdownNow();
+                if (!succeeded) {
+                    // 書き込み中のタスクが終わるのを待ってから削除する
+                    awaitTermination(executor);
+                    manifest.delete();
+                    for (int index = 0; index < futures.size(); index++) {
+                        partFile(source, index).delete();
+                    }
+                }
+            }
+        } finally {
+            sourceRaFile.close();
+        }
+    }
+
+    /**
+     * マニフェストファイルに記載されたパートを検証したうえで結合し、結合後のファイルの OBB 情報を返します。
+     *
+     * @param manifest マニフェストファイル。パートはマニフェストファイルと同じディレクトリから読み込みます。
+     * @param output 出力先ファイル。既に存在してはならず、結合に失敗した場合は削除します。
+     * @param threads パートの検証に使用するスレッド数。正数であること。
+     * @return 結合後のファイルの OBB 情報。
+     * @throws IOException 読み書きに失敗した場合、または出力先ファイルが既に存在する場合。
+     * @throws VerificationException マニフェストの形式が不正な場合、またはパートのハッシュ値が一致しない場合。
+     * @throws FooterCodec.NotObbException 結合後のファイルの末尾に OBB 情報が無い場合。
+     * @throws InterruptedException 待機中に割り込まれた場合。
+     */
+    public static ObbInfo join(File manifest, File output, int threads) throws IOException,
+            VerificationException, FooterCodec.NotObbException, InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("'threads' must be positive number.");
+        }
+        final List<String> hashes = new ArrayList<String>();
+        final List<File> parts = new ArrayList<File>();
+        readManifest(manifest, hashes, parts);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<String>> futures = new ArrayList<Future<String>>(parts.size());
+            for (final File part : parts) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return hashFile(part);
+                    }
+                }));
+            }
+            for (int index = 0; index < parts.size(); index++) {
+                if (!hashes.get(index).equals(getResult(futures.get(index)))) {
+                    throw new VerificationException("checksum mismatch: "
+                            + parts.get(index).getPath());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!output.createNewFile()) {
+            throw new IOException("output already exists: " + output.getPath());
+        }
+        boolean succeeded = false;
+        final RandomAccessFile outputRaFile = new RandomAccessFile(output, "rw");
+        try {
+            final FileChannel outputChannel = outputRaFile.getChannel();
+            long position = 0;
+            for (File part : parts) {
+                final FileInputStream in = new FileInputStream(part);
+                try {
+                    final FileChannel partChannel = in.getChannel();
+                    final long partSize = partChannel.size();
+                    long transferred = 0;
+                    while (transferred < partSize) {
+                        final long len = partChannel.transferTo(transferred, partSize
+                                - transferred, outputChannel);
+                        if (len <= 0) {
+                            throw new IOException("failed to transfer: " + part.getPath());
+                        }
+                        transferred += len;
+                    }
+                    position += partSize;
+                } finally {
+                    in.close();
+                }
+            }
+            if (outputChannel.size() != position) {
+                throw new IOException("unexpected output size: " + output.getPath());
+            }
+            final ObbInfo info = FooterCodecRegistry.getDefault().read(outputChannel);
+            succeeded = true;
+            return info;
+        } finally {
+            outputRaFile.close();
+            if (!succeeded) {
+                output.delete();
+            }
+        }
+    }
+
+    static File partFile(File source, int index) {
+        // ロケールによっては ASCII 以外の数字で書式化されるため、ロケールを固定する
+        return new File(source.getPath()
+                + String.format(Locale.ENGLISH, ".%03d", Integer.valueOf(index + 1)));
+    }
+
+    private static String writePart(FileChannel source, long offset, long length, File part)
+            throws IOException {
+        final MessageDigest digest = newDigest();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE,
+                Math.max(length, 1)));
+        final RandomAccessFile partRaFile = new RandomAccessFile(part, "rw");
+        try {
+            partRaFile.setLength(length);
+            final FileChannel partChannel = partRaFile.getChannel();
+            long done = 0;
+            while (done < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - done));
+                final int len = source.read(buffer, offset + done);
+                if (len < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                while (buffer.hasRemaining()) {
+                    partChannel.write(buffer, done + buffer.position());
+                }
+                done += len;
+            }
+        } finally {
+            partRaFile.close();
+        }
+        return CommandLineUtil.toHexString(digest.digest());
+    }
+
+    private static String hashFile(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while (0 <= (len = in.read(buffer))) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return CommandLineUtil.toHexString(digest.digest());
+    }
+
+    private static void readManifest(File manifest, List<String> hashes, List<File> parts)
+            throws IOException, VerificationException {
+        final File dir = manifest.getAbsoluteFile().getParentFile();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                manifest), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // sha256sum の形式: "<hash>  <name>" (バイナリモードでは "<hash> *<name>")
+                final int separator = line.indexOf(' ');
+                if (separator <= 0 || line.length() < separator + 3) {
+                    throw new VerificationException("invalid manifest line: " + line);
+                }
+                final String name = line.substring(separator + 2);
+                // マニフェストと同じディレクトリ以外のファイルを参照させない
+                if (name.indexOf('/') != -1 || name.indexOf('\\') != -1 || name.equals(".")
+                        || name.equals("..")) {
+                    throw new VerificationException("invalid part name: " + name);
+                }
+                hashes.add(line.substring(0, separator).toLowerCase());
+                parts.add(new File(dir, name));
+            }
+        } finally {
+            in.close();
+        }
+        if (parts.isEmpty()) {
+            throw new VerificationException("no parts in manifest: " + manifest.getPath());
+        }
+    }
+
+    /**
+     * 割り込まれても待ち続け、終了後に割り込み状態を復元します。
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String getResult(Future<String> future) throws IOException,
+            InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+
+public class CatalogScannerTest {
+
+    @Test
+    public void 正常_scan_OBB情報あり() throws Exception {
+        final StringWriter out = new StringWriter();
+        final CatalogScanner scanner = new CatalogScanner(2, out);
+        scanner.submit(new File("files_for_test/only_obb_info"));
+        assertEquals(0, scanner.finish());
+        assertEquals("{\"path\":\"files_for_test/only_obb_info\","
+                + "\"package\":\"org.zakky.stickyshortcut\",\"version\":1,\"flags\":0,"
+                + "\"salt\":\"0000000000000000\",\"error\":null}\n", out.toString());
+    }
+
+    @Test
+    public void 正常_scan_OBB情報なし() throws Exception {
+        final StringWriter out = new StringWriter();
+        final CatalogScanner scanner = new CatalogScanner(2, out);
+        scanner.submit(new File("files_for_test/empty"));
+        scanner.submit(new File("files_for_test/not_exists"));
+        assertEquals(2, scanner.finish());
+        assertEquals(2, scanner.getSubmittedCount());
+        final String result = out.toString();
+        assertTrue(result, result.contains("\"path\":\"files_for_test/empty\","
+                + "\"package\":null,\"version\":null,\"flags\":null,\"salt\":null,"
+                + "\"error\":\"too small\"}\n"));
+        assertTrue(result, result.contains("\"error\":\"cannot open\"}\n"));
+    }
+
+    @Test
+    public void 正常_appendJsonString_エスケープ() {
+        final StringBuilder sb = new StringBuilder();
+        CatalogScanner.appendJsonString(sb, "a\"b\\c\nd\u0001e日本");
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001e日本\"", sb.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_constructor_maxInFlightが0() {
+        new CatalogScanner(0, new StringWriter());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import jp.andeb.obbutil.FileLocker.LockUnavailableException;
+
+public class ChunkStoreTest {
+
+    private File dir_;
+
+    private ContentChunker chunker_;
+
+    @Before
+    public void setUp() throws Exception {
+        dir_ = TestFiles.createTempDir("chunkstore");
+        chunker_ = new ContentChunker(256, 1024, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFiles.delete(dir_);
+    }
+
+    @Test
+    public void 正常_store_restore_重複排除() throws Exception {
+        final byte[] v1 = new byte[200000];
+        new Random(0).nextBytes(v1);
+        // 先頭付近にデータを挿入した版
+        final byte[] v2 = new byte[v1.length + 100];
+        System.arraycopy(v1, 0, v2, 0, 1000);
+        System.arraycopy(v1, 1000, v2, 1100, v1.length - 1000);
+        final File f1 = TestFiles.write(new File(dir_, "v1.obb"), v1);
+        final File f2 = TestFiles.write(new File(dir_, "v2.obb"), v2);
+
+        final ChunkStore store = new ChunkStore(new File(dir_, "store"), chunker_);
+        try {
+            final ChunkStore.TransferStats first = store.store(f1, "v1.obb", 2);
+            assertEquals(v1.length, first.getBytes());
+            assertEquals(v1.length, first.getNewBytes());
+            final ChunkStore.TransferStats second = store.store(f2, "v2.obb", 2);
+            assertEquals(v2.length, second.getBytes());
+            assertTrue("new bytes: " + second.getNewBytes(), second.getNewBytes() < v2.length / 4);
+            assertTrue(1.5 < store.getDedupRatio());
+        } finally {
+            store.close();
+        }
+
+        // 開き直しても復元できる
+        final ChunkStore reopened = new ChunkStore(new File(dir_, "store"), chunker_);
+        try {
+            final File restored = new File(dir_, "restored.obb");
+            reopened.restore("v2.obb", restored, 2);
+            assertTrue(Arrays.equals(v2, TestFiles.read(restored)));
+            assertEquals(v1.length + v2.length, reopened.getLogicalSize());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void 異常_ChunkStore_使用中のストア() throws Exception {
+        final File storeDir = new File(dir_, "store");
+        final ChunkStore store = new ChunkStore(storeDir, chunker_);
+        try {
+            new ChunkStore(storeDir, chunker_).close();
+            fail();
+        } catch (LockUnavailableException e) {
+            // 期待どおり
+        } finally {
+            store.close();
+        }
+        // 閉じた後は開ける
+        new ChunkStore(storeDir, chunker_).close();
+    }
+
+    @Test
+    public void 異常_restore_壊れたチャンクは出力を削除() throws Exception {
+        final byte[] contents = new byte[20000];
+        new Random(2).nextBytes(contents);
+        final File source = TestFiles.write(new File(dir_, "v1.obb"), contents);
+        final File storeDir = new File(dir_, "store");
+        final ChunkStore store = new ChunkStore(storeDir, chunker_);
+        try {
+            store.store(source, "v1.obb", 2);
+        } finally {
+            store.close();
+        }
+        // 最後のチャンクのデータを書き換える
+        final File pack = new File(storeDir, ChunkStore.PACK_FILE_NAME);
+        final byte[] packContents = TestFiles.read(pack);
+        packContents[packContents.length - 1] ^= 1;
+        TestFiles.write(pack, packContents);
+
+        final ChunkStore reopened = new ChunkStore(storeDir, chunker_);
+        final File restored = new File(dir_, "restored.obb");
+        try {
+            reopened.restore("v1.obb", restored, 2);
+            fail();
+        } catch (IOException e) {
+            assertFalse(restored.exists());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void 正常_nextBoundary_サイズの範囲() throws Exception {
+        final byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        int start = 0;
+        while (start < data.length) {
+            final int end = chunker_.nextBoundary(buffer, start, data.length);
+            assertTrue(end <= data.length);
+            assertTrue(end - start <= 4096);
+            if (end < data.length) {
+                assertTrue(256 <= end - start);
+            }
+            start = end;
+        }
+    }
+}
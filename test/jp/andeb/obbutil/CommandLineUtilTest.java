@@ -16,6 +16,8 @@
 
 package jp.andeb.obbutil;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
@@ -55,4 +57,21 @@ public class CommandLineUtilTest {
                 Arrays.equals(expected, actual));
     }
 
+    @Test
+    public void 正常_toSize() {
+        assertEquals(Long.valueOf(100), CommandLineUtil.toSize("100"));
+        assertEquals(Long.valueOf(3 * 1024), CommandLineUtil.toSize("3k"));
+        assertEquals(Long.valueOf(100L * 1024 * 1024), CommandLineUtil.toSize("100M"));
+        assertEquals(Long.valueOf(2L * 1024 * 1024 * 1024), CommandLineUtil.toSize("2G"));
+    }
+
+    @Test
+    public void 異常_toSize() {
+        assertNull(CommandLineUtil.toSize(""));
+        assertNull(CommandLineUtil.toSize("M"));
+        assertNull(CommandLineUtil.toSize("0"));
+        assertNull(CommandLineUtil.toSize("-1K"));
+        assertNull(CommandLineUtil.toSize("1T"));
+    }
+
 }
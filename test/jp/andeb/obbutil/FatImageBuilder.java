@@ -0,0 +1,338 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * テスト用に FAT ファイルシステムのイメージを作成します。
+ * <p>
+ * ファイル名は 8.3 形式のみに対応します。すべて小文字の名前は NT の大文字小文字フラグで表現します。
+ * ファイルを確保したあと必要な部分だけを書き込むため、大きなイメージでもスパースファイルになります。
+ */
+final class FatImageBuilder {
+
+    private static final int BYTES_PER_SECTOR = 512;
+
+    private static final int FAT_COUNT = 2;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final class Dir {
+        final Map<String, Dir> dirs = new LinkedHashMap<String, Dir>();
+
+        final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+
+        final Map<String, Long> fileClusters = new LinkedHashMap<String, Long>();
+
+        long cluster;
+
+        int clusters;
+    }
+
+    private final long totalSectors_;
+
+    private final int sectorsPerCluster_;
+
+    private final Dir root_ = new Dir();
+
+    private int fatBits_;
+
+    private int reservedSectors_;
+
+    private int rootEntryCount_;
+
+    private long fatSize_;
+
+    private long clusterCount_;
+
+    private int[] fat_;
+
+    private long nextCluster_;
+
+    /**
+     * @param size イメージのバイト数。セクタサイズ (512) の倍数に切り捨てられます。
+     * @param sectorsPerCluster クラスタあたりのセクタ数。2 のべき乗であること。
+     */
+    FatImageBuilder(long size, int sectorsPerCluster) {
+        totalSectors_ = size / BYTES_PER_SECTOR;
+        sectorsPerCluster_ = sectorsPerCluster;
+    }
+
+    /**
+     * ファイルを追加します。途中のディレクトリは自動的に作成されます。
+     *
+     * @param path {@code /} で始まるパス。各要素は 8.3 形式であること。
+     * @param contents ファイルの内容。
+     * @return このインスタンス。
+     */
+    FatImageBuilder add(String path, byte[] contents) {
+        final String[] names = path.substring(1).split("/");
+        Dir dir = root_;
+        for (int index = 0; index < names.length - 1; index++) {
+            Dir child = dir.dirs.get(names[index]);
+            if (child == null) {
+                child = new Dir();
+                dir.dirs.put(names[index], child);
+            }
+            dir = child;
+        }
+        dir.files.put(names[names.length - 1], contents);
+        return this;
+    }
+
+    /**
+     * イメージをチャネルの先頭に書き込みます。
+     *
+     * @param channel 書き込み先のチャネル。
+     * @return イメージの FAT の種類 (12、16 または 32)。
+     * @throws IOException 書き込みに失敗した場合。
+     */
+    int write(FileChannel channel) throws IOException {
+        layout();
+        final long bytesPerCluster = (long) sectorsPerCluster_ * BYTES_PER_SECTOR;
+        final long dataOffset = (reservedSectors_ + FAT_COUNT * fatSize_ + rootDirSectors())
+                * BYTES_PER_SECTOR;
+
+        fat_ = new int[(int) (clusterCount_ + 2)];
+        fat_[0] = 0x0ffffff8;
+        fat_[1] = 0x0fffffff;
+        nextCluster_ = 2;
+        if (fatBits_ == 32) {
+            allocate(root_);
+        }
+        allocateChildren(root_, bytesPerCluster);
+
+        final ByteBuffer boot = ByteBuffer.allocate(BYTES_PER_SECTOR).order(ByteOrder.LITTLE_ENDIAN);
+        boot.put(0, (byte) 0xeb).put(1, (byte) 0x3c).put(2, (byte) 0x90);
+        boot.position(3);
+        boot.put("OBBUTIL ".getBytes(ASCII));
+        boot.putShort(11, (short) BYTES_PER_SECTOR);
+        boot.put(13, (byte) sectorsPerCluster_);
+        boot.putShort(14, (short) reservedSectors_);
+        boot.put(16, (byte) FAT_COUNT);
+        boot.putShort(17, (short) rootEntryCount_);
+        if (totalSectors_ < 0x10000) {
+            boot.putShort(19, (short) totalSectors_);
+        } else {
+            boot.putInt(32, (int) totalSectors_);
+        }
+        boot.put(21, (byte) 0xf8);
+        if (fatBits_ == 32) {
+            boot.putInt(36, (int) fatSize_);
+            boot.putInt(44, (int) root_.cluster);
+            boot.put(66, (byte) 0x29);
+            boot.position(82);
+            boot.put("FAT32   ".getBytes(ASCII));
+        } else {
+            boot.putShort(22, (short) fatSize_);
+            boot.put(38, (byte) 0x29);
+            boot.position(54);
+            boot.put(("FAT" + fatBits_ + "   ").getBytes(ASCII));
+        }
+        boot.put(510, (byte) 0x55).put(511, (byte) 0xaa);
+        boot.clear();
+
+        channel.truncate(0);
+        writeFully(channel, ByteBuffer.allocate(1), totalSectors_ * BYTES_PER_SECTOR - 1);
+        writeFully(channel, boot, 0);
+        final ByteBuffer fat = encodeFat();
+        for (int index = 0; index < FAT_COUNT; index++) {
+            writeFully(channel, fat.duplicate(), (reservedSectors_ + index * fatSize_)
+                    * BYTES_PER_SECTOR);
+        }
+        writeDirectory(channel, root_, dataOffset, bytesPerCluster, 0);
+        return fatBits_;
+    }
+
+    private void layout() {
+        final long approxClusters = totalSectors_ / sectorsPerCluster_;
+        if (approxClusters < 4085) {
+            fatBits_ = 12;
+        } else if (approxClusters < 65525) {
+            fatBits_ = 16;
+        } else {
+            fatBits_ = 32;
+        }
+        reservedSectors_ = (fatBits_ == 32) ? 32 : 1;
+        rootEntryCount_ = (fatBits_ == 32) ? 0 : 512;
+        fatSize_ = ((approxClusters + 2) * fatBits_ / 8 + BYTES_PER_SECTOR) / BYTES_PER_SECTOR;
+        clusterCount_ = (totalSectors_ - reservedSectors_ - FAT_COUNT * fatSize_ - rootDirSectors())
+                / sectorsPerCluster_;
+        final boolean consistent;
+        switch (fatBits_) {
+            case 12:
+                consistent = clusterCount_ < 4085;
+                break;
+            case 16:
+                consistent = 4085 <= clusterCount_ && clusterCount_ < 65525;
+                break;
+            default:
+                consistent = 65525 <= clusterCount_;
+        }
+        if (!consistent) {
+            throw new IllegalArgumentException("size is too close to FAT type boundary.");
+        }
+    }
+
+    private long rootDirSectors() {
+        return (long) rootEntryCount_ * 32 / BYTES_PER_SECTOR;
+    }
+
+    private void allocate(Dir dir) {
+        // ".", ".." とすべての子を格納できるだけのクラスタを確保する
+        final long bytes = (2L + dir.dirs.size() + dir.files.size()) * 32;
+        final long bytesPerCluster = (long) sectorsPerCluster_ * BYTES_PER_SECTOR;
+        dir.clusters = (int) Math.max(1, (bytes + bytesPerCluster - 1) / bytesPerCluster);
+        dir.cluster = chain(dir.clusters);
+    }
+
+    private void allocateChildren(Dir dir, long bytesPerCluster) {
+        for (Dir child : dir.dirs.values()) {
+            allocate(child);
+        }
+        for (Map.Entry<String, byte[]> e : dir.files.entrySet()) {
+            final int count = (int) ((e.getValue().length + bytesPerCluster - 1) / bytesPerCluster);
+            dir.fileClusters.put(e.getKey(), Long.valueOf((count == 0) ? 0 : chain(count)));
+        }
+        for (Dir child : dir.dirs.values()) {
+            allocateChildren(child, bytesPerCluster);
+        }
+    }
+
+    private long chain(int count) {
+        if (clusterCount_ + 2 < nextCluster_ + count) {
+            throw new IllegalArgumentException("image is full.");
+        }
+        final long first = nextCluster_;
+        for (int index = 0; index < count; index++) {
+            fat_[(int) nextCluster_] = (index == count - 1) ? 0x0fffffff : (int) (nextCluster_ + 1);
+            nextCluster_++;
+        }
+        return first;
+    }
+
+    private ByteBuffer encodeFat() {
+        final ByteBuffer fat = ByteBuffer.allocate((int) (fatSize_ * BYTES_PER_SECTOR)).order(
+                ByteOrder.LITTLE_ENDIAN);
+        for (int cluster = 0; cluster < nextCluster_; cluster++) {
+            final int value = fat_[cluster];
+            switch (fatBits_) {
+                case 12: {
+                    final int offset = cluster + cluster / 2;
+                    final int entry = value & 0xfff;
+                    if ((cluster & 1) == 0) {
+                        fat.put(offset, (byte) entry);
+                        fat.put(offset + 1, (byte) ((fat.get(offset + 1) & 0xf0) | (entry >> 8)));
+                    } else {
+                        fat.put(offset, (byte) ((fat.get(offset) & 0x0f) | ((entry & 0x0f) << 4)));
+                        fat.put(offset + 1, (byte) (entry >> 4));
+                    }
+                    break;
+                }
+                case 16:
+                    fat.putShort(cluster * 2, (short) value);
+                    break;
+                default:
+                    fat.putInt(cluster * 4, value & 0x0fffffff);
+            }
+        }
+        return fat;
+    }
+
+    private void writeDirectory(FileChannel channel, Dir dir, long dataOffset,
+            long bytesPerCluster, long parentCluster) throws IOException {
+        final boolean isRoot = (dir == root_);
+        final int size = (isRoot && fatBits_ != 32) ? rootEntryCount_ * 32
+                : (int) (dir.clusters * bytesPerCluster);
+        final ByteBuffer entries = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        if (!isRoot) {
+            putEntry(entries, ".", 0x10, dir.cluster, 0);
+            putEntry(entries, "..", 0x10, parentCluster, 0);
+        }
+        for (Map.Entry<String, Dir> e : dir.dirs.entrySet()) {
+            putEntry(entries, e.getKey(), 0x10, e.getValue().cluster, 0);
+        }
+        for (Map.Entry<String, byte[]> e : dir.files.entrySet()) {
+            final long cluster = dir.fileClusters.get(e.getKey()).longValue();
+            putEntry(entries, e.getKey(), 0x20, cluster, e.getValue().length);
+            if (cluster != 0) {
+                writeFully(channel, ByteBuffer.wrap(e.getValue()), dataOffset + (cluster - 2)
+                        * bytesPerCluster);
+            }
+        }
+        entries.clear();
+        final long offset = (isRoot && fatBits_ != 32) ? (reservedSectors_ + FAT_COUNT * fatSize_)
+                * BYTES_PER_SECTOR : dataOffset + (dir.cluster - 2) * bytesPerCluster;
+        writeFully(channel, entries, offset);
+
+        // ".." がルートを指す場合はクラスタ番号 0 とする
+        final long selfCluster = isRoot ? 0 : dir.cluster;
+        for (Dir child : dir.dirs.values()) {
+            writeDirectory(channel, child, dataOffset, bytesPerCluster, selfCluster);
+        }
+    }
+
+    private void putEntry(ByteBuffer entries, String name, int attr, long cluster, long size) {
+        final int offset = entries.position();
+        final byte[] raw = new byte[11];
+        Arrays.fill(raw, (byte) ' ');
+        int caseFlags = 0;
+        if (name.equals(".") || name.equals("..")) {
+            System.arraycopy(name.getBytes(ASCII), 0, raw, 0, name.length());
+        } else {
+            final int dot = name.lastIndexOf('.');
+            final String base = (dot < 0) ? name : name.substring(0, dot);
+            final String ext = (dot < 0) ? "" : name.substring(dot + 1);
+            if (base.isEmpty() || 8 < base.length() || 3 < ext.length()) {
+                throw new IllegalArgumentException("not a 8.3 name: " + name);
+            }
+            if (!base.equals(base.toUpperCase(Locale.ENGLISH))) {
+                caseFlags |= 0x08;
+            }
+            if (!ext.equals(ext.toUpperCase(Locale.ENGLISH))) {
+                caseFlags |= 0x10;
+            }
+            final byte[] baseBytes = base.toUpperCase(Locale.ENGLISH).getBytes(ASCII);
+            final byte[] extBytes = ext.toUpperCase(Locale.ENGLISH).getBytes(ASCII);
+            System.arraycopy(baseBytes, 0, raw, 0, baseBytes.length);
+            System.arraycopy(extBytes, 0, raw, 8, extBytes.length);
+        }
+        entries.put(raw);
+        entries.put(offset + 11, (byte) attr);
+        entries.put(offset + 12, (byte) caseFlags);
+        entries.putShort(offset + 20, (short) (cluster >>> 16));
+        entries.putShort(offset + 26, (short) cluster);
+        entries.putInt(offset + 28, (int) size);
+        entries.position(offset + 32);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position)
+            throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
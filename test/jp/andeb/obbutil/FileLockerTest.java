@@ -0,0 +1,223 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.andeb.obbutil.FileLocker.LockUnavailableException;
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+
+public class FileLockerTest {
+
+    private static final int FILE_COUNT = 3;
+
+    private static final int OPERATION_COUNT = 600;
+
+    private static final int IMAGE_SIZE = 4096;
+
+    private final File[] files_ = new File[FILE_COUNT];
+
+    private PrintStream err_;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int index = 0; index < FILE_COUNT; index++) {
+            files_[index] = TestFiles.setLength(File.createTempFile("lock", ".obb"), IMAGE_SIZE);
+        }
+        // 各操作が出力するメッセージを捨てる
+        err_ = TestFiles.discardErr();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.setErr(err_);
+        for (File file : files_) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void 正常_並行したaddとremove() throws Exception {
+        final AtomicInteger[] balances = new AtomicInteger[FILE_COUNT];
+        for (int index = 0; index < FILE_COUNT; index++) {
+            balances[index] = new AtomicInteger();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            final Random random = new Random(0);
+            for (int op = 0; op < OPERATION_COUNT; op++) {
+                final int target = random.nextInt(FILE_COUNT);
+                final boolean add = random.nextBoolean();
+                // 操作ごとに長さの異なるパッケージ名を使い、競合すれば末尾が壊れるようにする
+                final String pkgName = "jp.andeb.obbutil.stress" + op;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (add) {
+                            if (ObbUtilMain.addObbInfo(files_[target], new ObbInfoV1(0, null,
+                                    pkgName, 1), FileLocker.Policy.WAIT)) {
+                                balances[target].incrementAndGet();
+                            }
+                        } else {
+                            if (ObbUtilMain.removeObbInfo(files_[target],
+                                    FileLocker.Policy.WAIT)) {
+                                balances[target].decrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int index = 0; index < FILE_COUNT; index++) {
+            final RandomAccessFile file = new RandomAccessFile(files_[index], "r");
+            try {
+                final int balance = balances[index].get();
+                if (balance == 0) {
+                    assertEquals(IMAGE_SIZE, file.length());
+                    try {
+                        ObbInfoV1.fromFile(file);
+                        fail();
+                    } catch (NotObbException e) {
+                        // 正常
+                    }
+                } else {
+                    assertEquals(1, balance);
+                    final ObbInfoV1 info = ObbInfoV1.fromFile(file);
+                    assertTrue(info.getPackageName().startsWith("jp.andeb.obbutil.stress"));
+                    assertEquals(IMAGE_SIZE + info.toBytes().remaining(), file.length());
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    @Test
+    public void 異常_FAILでロック中() throws Exception {
+        final RandomAccessFile holder = new RandomAccessFile(files_[0], "rw");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final FileLocker lock = FileLocker.acquire(files_[0], holder.getChannel(),
+                            FileLocker.Policy.WAIT);
+                    locked.countDown();
+                    done.await();
+                    lock.release();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        try {
+            locked.await();
+            // 別名で指定しても同じファイルとして扱われる
+            final File alias = new File(files_[0].getParentFile(), "." + File.separator
+                    + files_[0].getName());
+            final RandomAccessFile other = new RandomAccessFile(alias, "rw");
+            try {
+                FileLocker.acquire(alias, other.getChannel(), FileLocker.Policy.FAIL);
+                fail();
+            } catch (LockUnavailableException e) {
+                // 正常
+            } finally {
+                other.close();
+            }
+            assertEquals(false, ObbUtilMain.removeObbInfo(files_[0], FileLocker.Policy.FAIL));
+        } finally {
+            done.countDown();
+            thread.join();
+            holder.close();
+        }
+        assertEquals(IMAGE_SIZE, files_[0].length());
+    }
+
+    @Test
+    public void 正常_別のファイルはFAILでもロックできる() throws Exception {
+        final File dir = TestFiles.createTempDir("lock");
+        final RandomAccessFile holder = new RandomAccessFile(files_[0], "rw");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final FileLocker lock = FileLocker.acquire(files_[0], holder.getChannel(),
+                            FileLocker.Policy.WAIT);
+                    locked.countDown();
+                    done.await();
+                    lock.release();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        try {
+            locked.await();
+            // パスのハッシュ値が偏っても、他のスレッドがロック中のファイル以外は影響を受けない
+            for (int index = 0; index < 256; index++) {
+                final File other = TestFiles.setLength(new File(dir, "a" + index + ".obb"),
+                        IMAGE_SIZE);
+                final RandomAccessFile raFile = new RandomAccessFile(other, "rw");
+                try {
+                    FileLocker.acquire(other, raFile.getChannel(), FileLocker.Policy.FAIL)
+                            .release();
+                } finally {
+                    raFile.close();
+                }
+            }
+            assertEquals(1, FileLocker.getLockCount());
+        } finally {
+            done.countDown();
+            thread.join();
+            holder.close();
+            TestFiles.delete(dir);
+        }
+        assertEquals(0, FileLocker.getLockCount());
+    }
+}
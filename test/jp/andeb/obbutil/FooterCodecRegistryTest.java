@@ -0,0 +1,277 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+
+public class FooterCodecRegistryTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File target_;
+
+    @Before
+    public void setUp() throws Exception {
+        target_ = File.createTempFile("codec", ".obb");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        target_.delete();
+    }
+
+    @Test
+    public void 正常_decode_V1() throws Exception {
+        final byte[] footer = new ObbInfoV1(ObbInfoV1.FLAG_OVERLAY, null, "jp.andeb.obbutil", 3)
+                .toBytes().array();
+        final ByteBuffer tail = ByteBuffer.allocate(100 + footer.length);
+        tail.position(100);
+        tail.put(footer);
+        tail.position(50);
+
+        final ObbInfo info = FooterCodecRegistry.getDefault().decode(tail);
+        assertTrue(info instanceof ObbInfoV1);
+        assertEquals(1, info.getFooterVersion());
+        assertEquals("jp.andeb.obbutil", info.getPackageName());
+        assertEquals(3, info.getPackageVersion());
+        assertTrue(info.isOverlay());
+        // バッファの状態は変更されない
+        assertEquals(50, tail.position());
+        assertEquals(tail.capacity(), tail.limit());
+        assertSame(ObbInfoV1.CODEC, FooterCodecRegistry.getDefault().getCodec(1));
+    }
+
+    @Test
+    public void 正常_独自形式のコーデック() throws Exception {
+        final FooterCodecRegistry registry = new FooterCodecRegistry();
+        registry.register(ObbInfoV1.CODEC);
+        registry.register(new BuildInfoCodec(BuildInfoCodec.VERSION));
+        write(new BuildInfo(BuildInfoCodec.VERSION, new ObbInfoV1(0, null, "jp.andeb.obbutil", 5),
+                "build-1234").toBytes());
+
+        final ObbInfo info = registry.read(target_);
+        assertEquals(BuildInfoCodec.VERSION, info.getFooterVersion());
+        assertEquals("jp.andeb.obbutil", info.getPackageName());
+        assertEquals(5, info.getPackageVersion());
+        assertEquals("build-1234", ((BuildInfo) info).getBuildId());
+
+        try {
+            FooterCodecRegistry.getDefault().read(target_);
+            fail();
+        } catch (NotObbException e) {
+            assertEquals("unsupported version: " + BuildInfoCodec.VERSION, e.getMessage());
+        }
+        try {
+            ObbInfoV1.fromFile(target_);
+            fail();
+        } catch (NotObbException e) {
+            assertEquals("unsupported version: " + BuildInfoCodec.VERSION, e.getMessage());
+        }
+    }
+
+    @Test
+    public void 正常_removeObbInfo_独自形式() throws Exception {
+        // 標準のレジストリに登録するため、他のテストとは別のバージョンを使用する
+        final int version = BuildInfoCodec.VERSION + 1;
+        synchronized (FooterCodecRegistryTest.class) {
+            if (FooterCodecRegistry.getDefault().getCodec(version) == null) {
+                FooterCodecRegistry.getDefault().register(new BuildInfoCodec(version));
+            }
+        }
+        // 予約領域を含むため、再エンコードした長さとファイル上の長さが異なる
+        final ByteBuffer footer = withReserved(new BuildInfo(version, new ObbInfoV1(0, null,
+                "jp.andeb.obbutil", 5), "build-1234").toBytes(), 16);
+        write(footer);
+        assertEquals(1000 + footer.remaining(), target_.length());
+
+        final PrintStream err = TestFiles.discardErr();
+        try {
+            assertTrue(ObbUtilMain.removeObbInfo(target_, FileLocker.Policy.FAIL));
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals(1000, target_.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_register_バージョンが重複() throws Exception {
+        final FooterCodecRegistry registry = new FooterCodecRegistry();
+        registry.register(ObbInfoV1.CODEC);
+        registry.register(ObbInfoV1.CODEC);
+    }
+
+    private void write(ByteBuffer footer) throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(target_, "rw");
+        try {
+            file.setLength(1000);
+            file.seek(1000);
+            file.write(footer.array(), footer.arrayOffset() + footer.position(),
+                    footer.remaining());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * タグの直前に、コーデックが読み飛ばす {@code size} バイトの予約領域を挿入します。
+     */
+    private static ByteBuffer withReserved(ByteBuffer footer, int size) {
+        final int bodySize = footer.remaining() - FooterCodec.TAG_SIZE;
+        final ByteBuffer result = ByteBuffer.allocate(footer.remaining() + size);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        result.put(footer.array(), footer.arrayOffset() + footer.position(), bodySize);
+        result.put(new byte[size]);
+        result.putInt(bodySize + size);
+        result.putInt(FooterCodec.SIGNATURE);
+        result.flip();
+        return result;
+    }
+
+    /**
+     * バージョン 1 の内容に続けてビルド ID を格納する形式。
+     */
+    private static final class BuildInfoCodec implements FooterCodec {
+        static final int VERSION = 0x100;
+
+        private final int version_;
+
+        BuildInfoCodec(int version) {
+            version_ = version;
+        }
+
+        @Override
+        public int getVersion() {
+            return version_;
+        }
+
+        @Override
+        public ObbInfo decode(ByteBuffer footer) throws NotObbException {
+            footer.getInt();
+            final int packageVersion = footer.getInt();
+            final int flags = footer.getInt();
+            final byte[] salt = new byte[ObbInfoV1.SALT_LENGTH];
+            footer.get(salt);
+            final String packageName = getString(footer);
+            final String buildId = getString(footer);
+            return new BuildInfo(version_, new ObbInfoV1(flags, salt, packageName,
+                    packageVersion), buildId);
+        }
+
+        private static String getString(ByteBuffer footer) throws NotObbException {
+            final int size = footer.getInt();
+            if (size < 0 || footer.remaining() - FooterCodec.TAG_SIZE < size) {
+                throw new NotObbException("invalid string size: " + size);
+            }
+            final byte[] bytes = new byte[size];
+            footer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    private static final class BuildInfo implements ObbInfo {
+        private final int version_;
+
+        private final ObbInfoV1 base_;
+
+        private final String buildId_;
+
+        BuildInfo(int version, ObbInfoV1 base, String buildId) {
+            version_ = version;
+            base_ = base;
+            buildId_ = buildId;
+        }
+
+        String getBuildId() {
+            return buildId_;
+        }
+
+        @Override
+        public int getFooterVersion() {
+            return version_;
+        }
+
+        @Override
+        public String getPackageName() {
+            return base_.getPackageName();
+        }
+
+        @Override
+        public int getPackageVersion() {
+            return base_.getPackageVersion();
+        }
+
+        @Override
+        public int getFlags() {
+            return base_.getFlags();
+        }
+
+        @Override
+        public boolean isOverlay() {
+            return base_.isOverlay();
+        }
+
+        @Override
+        public boolean isSalted() {
+            return base_.isSalted();
+        }
+
+        @Override
+        public byte[] getSalt() {
+            return base_.getSalt();
+        }
+
+        @Override
+        public ByteBuffer toBytes() {
+            final byte[] name = getPackageName().getBytes(UTF8);
+            final byte[] build = buildId_.getBytes(UTF8);
+            final ByteBuffer buffer = ByteBuffer.allocate(36 + name.length + build.length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(version_);
+            buffer.putInt(getPackageVersion());
+            buffer.putInt(getFlags());
+            buffer.put(getSalt());
+            buffer.putInt(name.length).put(name);
+            buffer.putInt(build.length).put(build);
+            buffer.putInt(buffer.position());
+            buffer.putInt(FooterCodec.SIGNATURE);
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void prettyPrint(PrintStream out) {
+            base_.prettyPrint(out);
+            out.println("    Build ID: " + buildId_);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import jp.andeb.obbutil.FooterScanner.FoundFooter;
+
+public class FooterScannerTest {
+
+    private static final int IMAGE_SIZE = 1001;
+
+    private File target_;
+
+    @Before
+    public void setUp() throws Exception {
+        target_ = File.createTempFile("footer", ".obb");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        target_.delete();
+    }
+
+    @Test
+    public void 正常_scan_二重付加() throws Exception {
+        final ByteBuffer first = new ObbInfoV1(0, null, "jp.andeb.first", 1).toBytes();
+        final ByteBuffer second = new ObbInfoV1(0, null, "jp.andeb.second", 2).toBytes();
+        final int firstSize = first.remaining();
+        final int secondSize = second.remaining();
+        final RandomAccessFile file = new RandomAccessFile(target_, "rw");
+        try {
+            file.setLength(IMAGE_SIZE);
+            file.seek(IMAGE_SIZE);
+            file.write(first.array());
+            file.write(second.array());
+            // 途中で途切れた 3 つ目の OBB 情報
+            file.write(first.array(), 0, 10);
+
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(), 1024 * 1024);
+            assertEquals(2, footers.size());
+            assertEquals(IMAGE_SIZE, footers.get(0).getOffset());
+            assertEquals(firstSize, footers.get(0).getLength());
+            assertEquals("jp.andeb.first", footers.get(0).getInfo().getPackageName());
+            assertEquals(IMAGE_SIZE + firstSize, footers.get(1).getOffset());
+            assertEquals(secondSize, footers.get(1).getLength());
+            assertEquals("jp.andeb.second", footers.get(1).getInfo().getPackageName());
+
+            assertEquals(IMAGE_SIZE + firstSize,
+                    FooterScanner.findRepairedLength(file.getChannel(), footers));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void 正常_findRepairedLength_正常なファイル() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile("files_for_test/only_obb_info", "r");
+        try {
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(), 1024 * 1024);
+            assertEquals(1, footers.size());
+            assertEquals(0, footers.get(0).getOffset());
+            assertEquals(-1, FooterScanner.findRepairedLength(file.getChannel(), footers));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void 正常_findRepairedLength_後ろに不明なデータ() throws Exception {
+        final ByteBuffer info = new ObbInfoV1(0, null, "jp.andeb.obbutil", 1).toBytes();
+        final RandomAccessFile file = new RandomAccessFile(target_, "rw");
+        try {
+            // イメージ中に OBB 情報と同じバイト列が含まれ、その後ろがバージョンとして解釈できない
+            file.setLength(IMAGE_SIZE);
+            file.seek(IMAGE_SIZE);
+            file.write(info.array());
+            file.write(new byte[] {
+                    0x12, 0x34, 0x56, 0x78, 0x00, 0x00
+            });
+
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(), 1024 * 1024);
+            assertEquals(1, footers.size());
+            assertEquals(-1, FooterScanner.findRepairedLength(file.getChannel(), footers));
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void 正常_scan_チャンクの境界() throws Exception {
+        final ByteBuffer info = new ObbInfoV1(0, null, "jp.andeb.obbutil", 1).toBytes();
+        final RandomAccessFile file = new RandomAccessFile(target_, "rw");
+        try {
+            // シグネチャが 1MB の境界をまたぐように配置する
+            final long offset = 3L * 1024 * 1024 - info.remaining() + 2;
+            file.setLength(offset);
+            file.seek(offset);
+            file.write(info.array());
+            file.setLength(4L * 1024 * 1024);
+
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(),
+                    3L * 1024 * 1024);
+            assertEquals(1, footers.size());
+            assertEquals(offset, footers.get(0).getOffset());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void 正常_findRepairedLength_後ろに大きなデータ() throws Exception {
+        final ByteBuffer info = new ObbInfoV1(0, null, "jp.andeb.obbutil", 1).toBytes();
+        final RandomAccessFile file = new RandomAccessFile(target_, "rw");
+        try {
+            file.write(info.array());
+            file.setLength(file.length() + 65536);
+
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(), 1024 * 1024);
+            assertEquals(1, footers.size());
+            assertEquals(-1, FooterScanner.findRepairedLength(file.getChannel(), footers));
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link KeyDerivationService} のスレッド数ごとの鍵導出速度を計測します。
+ * <p>
+ * 使い方: {@code KeyDerivationBenchmark [繰り返し回数] [ソルト数]}
+ */
+public class KeyDerivationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = (0 < args.length) ? Integer.parseInt(args[0])
+                : KeyDerivationService.DEFAULT_ITERATIONS;
+        final int saltCount = (1 < args.length) ? Integer.parseInt(args[1]) : 512;
+        final char[] password = "benchmark".toCharArray();
+        final int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+        // ウォームアップ
+        run(password, salts(saltCount, -1), iterations, maxThreads);
+
+        System.out.println("iterations=" + iterations + ", salts=" + saltCount);
+        System.out.println("threads  derivations/sec");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final long elapsed = run(password, salts(saltCount, threads), iterations, threads);
+            final double perSec = saltCount * 1000000000.0 / elapsed;
+            System.out.println(String.format("%7d  %15.1f", threads, perSec));
+        }
+
+        final KeyDerivationService cached = new KeyDerivationService(
+                KeyDerivationService.DEFAULT_KEY_LENGTH, saltCount);
+        final List<byte[]> salts = salts(saltCount, 0);
+        cached.deriveKeys(password, salts, iterations, maxThreads);
+        final long start = System.nanoTime();
+        cached.deriveKeys(password, salts, iterations, maxThreads);
+        final double cachedPerSec = saltCount * 1000000000.0 / (System.nanoTime() - start);
+        System.out.println(String.format(" cached  %15.1f", cachedPerSec));
+    }
+
+    private static long run(char[] password, List<byte[]> salts, int iterations, int threads)
+            throws Exception {
+        final KeyDerivationService service = new KeyDerivationService(
+                KeyDerivationService.DEFAULT_KEY_LENGTH, salts.size());
+        final long start = System.nanoTime();
+        service.deriveKeys(password, salts, iterations, threads);
+        return System.nanoTime() - start;
+    }
+
+    private static List<byte[]> salts(int count, int run) {
+        final List<byte[]> salts = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] salt = new byte[ObbInfoV1.SALT_LENGTH];
+            salt[0] = (byte) i;
+            salt[1] = (byte) (i >>> 8);
+            salt[2] = (byte) run;
+            salts.add(salt);
+        }
+        return salts;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class KeyDerivationServiceTest {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @Test
+    public void 正常_deriveKey_RFC6070() throws Exception {
+        final KeyDerivationService service = new KeyDerivationService(160, 4);
+        final byte[] key = service.deriveKey(PASSWORD, "salt".getBytes("US-ASCII"), 2);
+        assertEquals("ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957", CommandLineUtil.toHexString(key));
+    }
+
+    @Test
+    public void 正常_deriveKey_キャッシュ上限() throws Exception {
+        final KeyDerivationService service = new KeyDerivationService(128, 2);
+        for (int i = 0; i < 5; i++) {
+            service.deriveKey(PASSWORD, salt(i), 1);
+        }
+        assertEquals(2, service.getCachedCount());
+        service.clearCache();
+        assertEquals(0, service.getCachedCount());
+    }
+
+    @Test
+    public void 正常_deriveKey_返された鍵を書き換えてもキャッシュに影響しない() throws Exception {
+        final KeyDerivationService service = new KeyDerivationService(128, 2);
+        final byte[] first = service.deriveKey(PASSWORD, salt(0), 1);
+        final byte[] expected = first.clone();
+        Arrays.fill(first, (byte) 0);
+        assertTrue(Arrays.equals(expected, service.deriveKey(PASSWORD, salt(0), 1)));
+    }
+
+    @Test
+    public void 正常_deriveKeys_逐次導出と一致() throws Exception {
+        final List<byte[]> salts = new ArrayList<byte[]>();
+        for (int i = 0; i < 16; i++) {
+            salts.add(salt(i));
+        }
+        final List<byte[]> keys = new KeyDerivationService(128, 32).deriveKeys(PASSWORD, salts,
+                16, 4);
+        final KeyDerivationService sequential = new KeyDerivationService(128, 32);
+        assertEquals(salts.size(), keys.size());
+        for (int i = 0; i < salts.size(); i++) {
+            assertTrue(Arrays.equals(sequential.deriveKey(PASSWORD, salts.get(i), 16),
+                    keys.get(i)));
+        }
+    }
+
+    @Test
+    public void 正常_deriveKey_導出中の追い出し() throws Exception {
+        final BlockingService service = new BlockingService(salt(0));
+        final Future<byte[]> blocked = service.deriveInBackground(salt(0));
+        service.awaitBlocked();
+
+        // 導出中にキャッシュ 1 件の追い出しを繰り返す
+        final byte[] other = service.deriveKey(PASSWORD, salt(1), 1);
+        service.deriveKey(PASSWORD, salt(2), 1);
+        service.release();
+        final byte[] key = blocked.get();
+        service.deriveKey(PASSWORD, salt(3), 1);
+
+        // 返された鍵は追い出しによるゼロ埋めの影響を受けない
+        assertTrue(Arrays.equals(expectedKey(salt(0)), key));
+        assertTrue(Arrays.equals(expectedKey(salt(1)), other));
+        assertEquals(1, service.getCachedCount());
+    }
+
+    @Test
+    public void 正常_deriveKey_導出中に同じ鍵がキャッシュされた() throws Exception {
+        final BlockingService service = new BlockingService(salt(0));
+        final Future<byte[]> blocked = service.deriveInBackground(salt(0));
+        service.awaitBlocked();
+
+        // 導出中の鍵を別のスレッドが先にキャッシュする
+        final byte[] first = service.deriveKey(PASSWORD, salt(0), 1);
+        service.release();
+        final byte[] second = blocked.get();
+        // キャッシュされた鍵を追い出してゼロ埋めさせる
+        service.deriveKey(PASSWORD, salt(1), 1);
+
+        assertTrue(Arrays.equals(expectedKey(salt(0)), first));
+        assertTrue(Arrays.equals(expectedKey(salt(0)), second));
+        assertEquals(1, service.getCachedCount());
+    }
+
+    /**
+     * 大量の鍵をキャッシュ 1 件で並行して導出します。時間がかかるため、システムプロパティ
+     * {@value LargeImageTest#LARGE_TESTS_PROPERTY} に {@code true} を指定した場合にだけ実行します。
+     */
+    @Test
+    public void 正常_deriveKeys_キャッシュ1件で並行導出() throws Exception {
+        assumeTrue(Boolean.getBoolean(LargeImageTest.LARGE_TESTS_PROPERTY));
+        final List<byte[]> salts = new ArrayList<byte[]>();
+        for (int i = 0; i < 20000; i++) {
+            salts.add(salt(i));
+        }
+        final byte[] zero = new byte[16];
+        // 競合は低い確率でしか起きないため、繰り返し回数を変えて何度か試す
+        for (int iterations = 1; iterations <= 5; iterations++) {
+            final List<byte[]> keys = new KeyDerivationService(128, 1).deriveKeys(PASSWORD,
+                    salts, iterations, 8);
+            for (byte[] key : keys) {
+                // 他のスレッドによる追い出しでゼロ埋めされた鍵が返されてはならない
+                assertFalse(Arrays.equals(zero, key));
+            }
+        }
+    }
+
+    @Test
+    public void 正常_saveKeyStore_次回実行で再利用() throws Exception {
+        final File keyStoreFile = File.createTempFile("keys", ".jceks");
+        keyStoreFile.delete();
+        try {
+            final char[] storePassword = "store".toCharArray();
+            final KeyDerivationService first = KeyDerivationService.withKeyStore(128, 4,
+                    keyStoreFile, storePassword);
+            final byte[] expected = first.deriveKey(PASSWORD, salt(1), 8);
+            first.saveKeyStore();
+            assertTrue(keyStoreFile.exists());
+
+            final KeyDerivationService second = KeyDerivationService.withKeyStore(128, 4,
+                    keyStoreFile, storePassword);
+            assertTrue(Arrays.equals(expected, second.deriveKey(PASSWORD, salt(1), 8)));
+        } finally {
+            keyStoreFile.delete();
+        }
+    }
+
+    @Test
+    public void 正常_saveKeyStore_別のパスワードでは再利用しない() throws Exception {
+        final File keyStoreFile = File.createTempFile("keys", ".jceks");
+        keyStoreFile.delete();
+        try {
+            final char[] storePassword = "store".toCharArray();
+            final KeyDerivationService first = KeyDerivationService.withKeyStore(128, 4,
+                    keyStoreFile, storePassword);
+            final byte[] saved = first.deriveKey(PASSWORD, salt(1), 8);
+            first.saveKeyStore();
+
+            final char[] other = "other".toCharArray();
+            final KeyDerivationService second = KeyDerivationService.withKeyStore(128, 4,
+                    keyStoreFile, storePassword);
+            final byte[] key = second.deriveKey(other, salt(1), 8);
+            assertFalse(Arrays.equals(saved, key));
+            assertTrue(Arrays.equals(new KeyDerivationService(128, 4).deriveKey(other, salt(1), 8),
+                    key));
+        } finally {
+            keyStoreFile.delete();
+        }
+    }
+
+    private static byte[] expectedKey(byte[] salt) throws Exception {
+        return new KeyDerivationService(128, 1).deriveKey(PASSWORD, salt, 1);
+    }
+
+    /**
+     * 別のスレッドで {@code blockedSalt} の鍵を導出した直後、キャッシュに格納する前で停止する
+     * {@link KeyDerivationService} です。キャッシュは 1 件です。
+     */
+    private static final class BlockingService extends KeyDerivationService {
+        private final byte[] blockedSalt_;
+
+        private final CountDownLatch blocked_ = new CountDownLatch(1);
+
+        private final CountDownLatch released_ = new CountDownLatch(1);
+
+        private final ExecutorService executor_ = Executors.newSingleThreadExecutor();
+
+        private volatile Thread blockedThread_;
+
+        BlockingService(byte[] blockedSalt) {
+            super(128, 1);
+            blockedSalt_ = blockedSalt;
+        }
+
+        Future<byte[]> deriveInBackground(final byte[] salt) {
+            final Future<byte[]> future = executor_.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    blockedThread_ = Thread.currentThread();
+                    return deriveKey(PASSWORD, salt, 1);
+                }
+            });
+            executor_.shutdown();
+            return future;
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked_.await(10, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            released_.countDown();
+        }
+
+        @Override
+        byte[] generateKey(char[] password, byte[] salt, int iterations)
+                throws GeneralSecurityException {
+            final byte[] key = super.generateKey(password, salt, iterations);
+            if (Thread.currentThread() == blockedThread_ && Arrays.equals(blockedSalt_, salt)) {
+                blocked_.countDown();
+                try {
+                    released_.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return key;
+        }
+    }
+
+    private static byte[] salt(int seed) {
+        final byte[] salt = new byte[ObbInfoV1.SALT_LENGTH];
+        salt[0] = (byte) seed;
+        salt[7] = (byte) (seed >>> 8);
+        return salt;
+    }
+}
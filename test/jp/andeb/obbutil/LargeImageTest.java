@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.andeb.obbutil.FatImage.Entry;
+import jp.andeb.obbutil.FooterScanner.FoundFooter;
+import jp.andeb.obbutil.SyntheticImageGenerator.Format;
+
+/**
+ * 数 GB のイメージを扱うテストです。
+ * <p>
+ * スパースファイルに対応していないファイルシステムでは実際にディスクを消費するため、システムプロパティ
+ * {@value #LARGE_TESTS_PROPERTY} に {@code true} を指定した場合にだけ大きなイメージのテストを実行します。
+ */
+public class LargeImageTest {
+
+    static final String LARGE_TESTS_PROPERTY = "obbutil.largeTests";
+
+    private static final long LARGE_SIZE = 6L * 1024 * 1024 * 1024;
+
+    private SyntheticImageGenerator generator_;
+
+    private PrintStream err_;
+
+    @Before
+    public void setUp() throws Exception {
+        generator_ = new SyntheticImageGenerator();
+        // add と remove が出力するメッセージを捨てる
+        err_ = TestFiles.discardErr();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.setErr(err_);
+        generator_.close();
+    }
+
+    @Test
+    public void 正常_6GBのFATイメージ() throws Exception {
+        assumeTrue(Boolean.getBoolean(LARGE_TESTS_PROPERTY));
+        final File image = generator_.create(Format.FAT, LARGE_SIZE, 150);
+        final String pkgName = SyntheticImageGenerator
+                .packageNameOfSize(ObbInfoV1.MAX_PACKAGE_NAME_SIZE);
+        assertTrue(ObbUtilMain.addObbInfo(image, new ObbInfoV1(0, null, pkgName, 7),
+                FileLocker.Policy.FAIL));
+
+        final RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            final ObbInfoV1 info = ObbInfoV1.fromFile(file);
+            assertEquals(pkgName, info.getPackageName());
+            assertEquals(7, info.getPackageVersion());
+
+            final List<FoundFooter> footers = FooterScanner.scan(file.getChannel(),
+                    FooterScanner.DEFAULT_WINDOW_MB * 1024L * 1024L);
+            assertEquals(1, footers.size());
+            assertEquals(LARGE_SIZE, footers.get(0).getOffset());
+
+            final FatImage fat = new FatImage(file.getChannel(), footers.get(0).getOffset());
+            assertEquals(32, fat.getFatBits());
+            final List<Entry> entries = fat.listFiles();
+            assertEquals(150, entries.size());
+            final Entry last = entries.get(149);
+            assertEquals(SyntheticImageGenerator.filePath(149), last.getPath());
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            fat.digest(last, digest);
+            assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(
+                    SyntheticImageGenerator.fileContents(149)), digest.digest()));
+        } finally {
+            file.close();
+        }
+
+        assertTrue(ObbUtilMain.removeObbInfo(image, FileLocker.Policy.FAIL));
+        assertEquals(LARGE_SIZE, image.length());
+    }
+
+    @Test
+    public void 正常_パッケージ名が境界の長さ() throws Exception {
+        assumeTrue(Boolean.getBoolean(LARGE_TESTS_PROPERTY));
+        final File image = generator_.create(Format.RAW, 3L * 1024 * 1024 * 1024 + 1, 0);
+        final String pkgName = SyntheticImageGenerator
+                .packageNameOfSize(ObbInfoV1.MAX_PACKAGE_NAME_SIZE);
+        assertEquals(ObbInfoV1.MAX_PACKAGE_NAME_SIZE, pkgName.getBytes("UTF-8").length);
+        final ObbInfoV1 info = new ObbInfoV1(ObbInfoV1.FLAG_OVERLAY, null, pkgName, 1);
+        assertEquals(FooterCodec.MAX_BUFFER_SIZE + FooterCodec.TAG_SIZE,
+                info.toBytes().remaining());
+
+        assertTrue(ObbUtilMain.addObbInfo(image, info, FileLocker.Policy.FAIL));
+        final ObbInfoV1 read = ObbInfoV1.fromFile(image);
+        assertEquals(pkgName, read.getPackageName());
+        assertTrue(read.isOverlay());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void 異常_パッケージ名が長すぎる() throws Exception {
+        new ObbInfoV1(0, null, SyntheticImageGenerator
+                .packageNameOfSize(ObbInfoV1.MAX_PACKAGE_NAME_SIZE + 1), 1);
+    }
+}
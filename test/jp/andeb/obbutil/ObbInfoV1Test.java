@@ -16,7 +16,9 @@
 
 package jp.andeb.obbutil;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -24,8 +26,12 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
+import jp.andeb.obbutil.FooterCodec.NotObbException;
+
 /**
  *
  */
@@ -64,6 +70,27 @@ public class ObbInfoV1Test {
         assertTrue(Arrays.equals(expected, info.toBytes().array()));
     }
 
+    @Test
+    public void 異常_decode_パッケージ名が不正なバイト列() throws Exception {
+        // 1 バイトごとに 3 バイトの U+FFFD に置き換えられ、再エンコードすると上限を超える
+        final int nameSize = ObbInfoV1.MAX_PACKAGE_NAME_SIZE;
+        final ByteBuffer footer = ByteBuffer.allocate(32 + nameSize).order(
+                ByteOrder.LITTLE_ENDIAN);
+        footer.putInt(1).putInt(1).putInt(0).put(new byte[ObbInfoV1.SALT_LENGTH]);
+        footer.putInt(nameSize);
+        final byte[] name = new byte[nameSize];
+        Arrays.fill(name, (byte) 0x80);
+        footer.put(name);
+        footer.putInt(footer.position()).putInt(FooterCodec.SIGNATURE);
+        footer.flip();
+        try {
+            FooterCodecRegistry.getDefault().decode(footer);
+            fail();
+        } catch (NotObbException e) {
+            assertEquals("invalid package name: 'packageName' is too long.", e.getMessage());
+        }
+    }
+
     private static ObbInfoV1 create(int flags, byte[] salt, String packageName,
             Integer packageVersion) {
         if (packageName == null) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.andeb.obbutil.FatImage.Entry;
+import jp.andeb.obbutil.FooterScanner.FoundFooter;
+import jp.andeb.obbutil.SyntheticImageGenerator.Format;
+
+/**
+ * スパースファイルで作成した大きなイメージに対して add、info、verify、remove を繰り返し、
+ * スループット、レイテンシのパーセンタイルおよびヒープ使用量を表示します。
+ * <p>
+ * 使い方: {@code ObbSoakHarness [秒数] [イメージ数] [イメージサイズ(例: 6G)] [スレッド数]}
+ * <p>
+ * パッケージ名の長さは 3 バイトから {@link ObbInfoV1#MAX_PACKAGE_NAME_SIZE} バイトまでの間で変化させ、
+ * 境界の長さも必ず含めます。いずれかの検証に失敗した場合は終了コード 1 で終了します。
+ */
+public class ObbSoakHarness {
+
+    private static final String[] OPERATIONS = {
+            "add", "info", "verify", "remove"
+    };
+
+    private static final int FILE_COUNT = 16;
+
+    public static void main(String[] args) throws Exception {
+        final long seconds = (0 < args.length) ? Long.parseLong(args[0]) : 60;
+        final int imageCount = (1 < args.length) ? Integer.parseInt(args[1]) : 8;
+        final long imageSize = (2 < args.length) ? CommandLineUtil.toSize(args[2]).longValue()
+                : 6L * 1024 * 1024 * 1024;
+        final int threads = (3 < args.length) ? Integer.parseInt(args[3]) : 4;
+        if (imageCount < threads) {
+            throw new IllegalArgumentException("image count must not be less than threads.");
+        }
+
+        final SyntheticImageGenerator generator = new SyntheticImageGenerator();
+        final PrintStream err = System.err;
+        boolean failed = false;
+        try {
+            final List<File> images = new ArrayList<File>(imageCount);
+            for (int index = 0; index < imageCount; index++) {
+                images.add(generator.create((index % 2 == 0) ? Format.FAT : Format.RAW,
+                        imageSize, FILE_COUNT));
+            }
+            System.out.println("images=" + imageCount + ", size=" + imageSize + ", threads="
+                    + threads + ", seconds=" + seconds);
+
+            // add と remove が出力するメッセージを捨てる
+            TestFiles.discardErr();
+            final long deadline = System.nanoTime() + seconds * 1000000000L;
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final List<Future<Worker>> futures = new ArrayList<Future<Worker>>(threads);
+            final long start = System.nanoTime();
+            for (int index = 0; index < threads; index++) {
+                // 各スレッドには別々のイメージを割り当て、add から remove までの間に他のスレッドが触れないようにする
+                final List<File> assigned = new ArrayList<File>();
+                for (int image = index; image < imageCount; image += threads) {
+                    assigned.add(images.get(image));
+                }
+                futures.add(executor.submit(new Worker(index, assigned, imageSize, deadline)));
+            }
+            final List<Worker> workers = new ArrayList<Worker>(threads);
+            long maxHeap = 0;
+            for (Future<Worker> future : futures) {
+                final Worker worker = future.get();
+                workers.add(worker);
+                maxHeap = Math.max(maxHeap, worker.maxHeap);
+            }
+            final long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            System.setErr(err);
+
+            System.out.println("operation      count      ops/sec"
+                    + "    p50(ms)    p90(ms)    p99(ms)    max(ms)");
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                int count = 0;
+                for (Worker worker : workers) {
+                    count += worker.counts[op];
+                }
+                final long[] latencies = new long[count];
+                int offset = 0;
+                for (Worker worker : workers) {
+                    System.arraycopy(worker.latencies[op], 0, latencies, offset, worker.counts[op]);
+                    offset += worker.counts[op];
+                }
+                Arrays.sort(latencies);
+                System.out.println(String.format("%-9s %10d %12.1f %10.3f %10.3f %10.3f %10.3f",
+                        OPERATIONS[op], Integer.valueOf(count),
+                        Double.valueOf(count * 1000000000.0 / elapsed),
+                        toMillis(percentile(latencies, 50)), toMillis(percentile(latencies, 90)),
+                        toMillis(percentile(latencies, 99)), toMillis(percentile(latencies, 100))));
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    System.out.println("FAILED: " + worker.failure);
+                    failed = true;
+                }
+            }
+            System.out.println("max heap used: " + (maxHeap / 1024 / 1024) + " MB");
+        } finally {
+            System.setErr(err);
+            generator.close();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private static Double toMillis(long nanos) {
+        return Double.valueOf(nanos / 1000000.0);
+    }
+
+    private static final class Worker implements Callable<Worker> {
+        private final int id_;
+
+        private final List<File> images_;
+
+        private final long imageSize_;
+
+        private final long deadline_;
+
+        private final Random random_;
+
+        final int[] counts = new int[OPERATIONS.length];
+
+        final long[][] latencies = new long[OPERATIONS.length][1024];
+
+        long maxHeap;
+
+        String failure;
+
+        Worker(int id, List<File> images, long imageSize, long deadline) {
+            id_ = id;
+            images_ = images;
+            imageSize_ = imageSize;
+            deadline_ = deadline;
+            random_ = new Random(id);
+        }
+
+        @Override
+        public Worker call() throws Exception {
+            final Runtime runtime = Runtime.getRuntime();
+            int iteration = 0;
+            while (failure == null && System.nanoTime() < deadline_) {
+                final File image = images_.get(random_.nextInt(images_.size()));
+                final String pkgName = packageName(iteration++);
+                final ObbInfoV1 info = new ObbInfoV1(0, null, pkgName, iteration);
+
+                long begin = System.nanoTime();
+                if (!ObbUtilMain.addObbInfo(image, info, FileLocker.Policy.WAIT)) {
+                    failure = image + ": add failed";
+                    break;
+                }
+                record(0, begin);
+
+                begin = System.nanoTime();
+                final ObbInfoV1 read;
+                try {
+                    read = ObbInfoV1.fromFile(image);
+                } catch (Exception e) {
+                    failure = image + ": info: " + e;
+                    break;
+                }
+                record(1, begin);
+
+                begin = System.nanoTime();
+                verify(image, info, read);
+                record(2, begin);
+
+                begin = System.nanoTime();
+                if (!ObbUtilMain.removeObbInfo(image, FileLocker.Policy.WAIT)) {
+                    failure = image + ": remove failed";
+                }
+                record(3, begin);
+                if (failure == null && image.length() != imageSize_) {
+                    failure = image + ": size after remove: " + image.length();
+                }
+                maxHeap = Math.max(maxHeap, runtime.totalMemory() - runtime.freeMemory());
+            }
+            return this;
+        }
+
+        private String packageName(int iteration) {
+            switch (iteration % 4) {
+                case 0:
+                    return SyntheticImageGenerator
+                            .packageNameOfSize(ObbInfoV1.MAX_PACKAGE_NAME_SIZE);
+                case 1:
+                    return "jp.andeb.soak" + id_;
+                default:
+                    return SyntheticImageGenerator.packageNameOfSize(3 + random_
+                            .nextInt(ObbInfoV1.MAX_PACKAGE_NAME_SIZE - 2));
+            }
+        }
+
+        private void verify(File image, ObbInfoV1 expected, ObbInfoV1 actual) throws Exception {
+            if (!expected.getPackageName().equals(actual.getPackageName())
+                    || expected.getPackageVersion() != actual.getPackageVersion()) {
+                failure = image + ": info mismatch";
+                return;
+            }
+            final int footerSize = expected.toBytes().remaining();
+            final RandomAccessFile raFile = new RandomAccessFile(image, "r");
+            try {
+                final List<FoundFooter> footers = FooterScanner.scan(raFile.getChannel(),
+                        FooterScanner.DEFAULT_WINDOW_MB * 1024L * 1024L);
+                if (footers.size() != 1 || footers.get(0).getOffset() != imageSize_
+                        || footers.get(0).getLength() != footerSize) {
+                    failure = image + ": unexpected footers: " + footers.size();
+                    return;
+                }
+                if (!isFat(raFile)) {
+                    return;
+                }
+                final FatImage fat = new FatImage(raFile.getChannel(), imageSize_);
+                final List<Entry> entries = fat.listFiles();
+                if (entries.size() != FILE_COUNT) {
+                    failure = image + ": unexpected file count: " + entries.size();
+                    return;
+                }
+                final int index = random_.nextInt(FILE_COUNT);
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                fat.digest(entries.get(index), digest);
+                final byte[] expectedDigest = MessageDigest.getInstance("SHA-256").digest(
+                        SyntheticImageGenerator.fileContents(index));
+                if (!Arrays.equals(expectedDigest, digest.digest())) {
+                    failure = image + ": contents mismatch: " + entries.get(index).getPath();
+                }
+            } finally {
+                raFile.close();
+            }
+        }
+
+        private static boolean isFat(RandomAccessFile raFile) throws Exception {
+            raFile.seek(510);
+            return raFile.read() == 0x55 && raFile.read() == 0xaa;
+        }
+
+        private void record(int op, long begin) {
+            final long elapsed = System.nanoTime() - begin;
+            if (counts[op] == latencies[op].length) {
+                latencies[op] = Arrays.copyOf(latencies[op], counts[op] * 2);
+            }
+            latencies[op][counts[op]++] = elapsed;
+        }
+    }
+}
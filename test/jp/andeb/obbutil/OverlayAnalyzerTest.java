@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import jp.andeb.obbutil.FatImage.Entry;
+import jp.andeb.obbutil.FatImage.InvalidImageException;
+import jp.andeb.obbutil.OverlayAnalyzer.Change;
+import jp.andeb.obbutil.OverlayAnalyzer.Kind;
+
+public class OverlayAnalyzerTest {
+
+    private File base_;
+
+    private File overlay_;
+
+    @Before
+    public void setUp() throws Exception {
+        base_ = File.createTempFile("base", ".obb");
+        overlay_ = File.createTempFile("overlay", ".obb");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        base_.delete();
+        overlay_.delete();
+    }
+
+    @Test
+    public void 正常_analyze() throws Exception {
+        final byte[] a = random(1000, 1);
+        final byte[] b = random(5000, 2);
+        final byte[] c = random(3000, 3);
+        final byte[] d = random(700, 4);
+
+        final RandomAccessFile base = new RandomAccessFile(base_, "rw");
+        final RandomAccessFile overlay = new RandomAccessFile(overlay_, "rw");
+        try {
+            assertEquals(12, new FatImageBuilder(1024 * 1024, 1).add("/A.BIN", a)
+                    .add("/B.BIN", b).add("/DATA/C.BIN", c).add("/DATA/D.BIN", d)
+                    .write(base.getChannel()));
+            // 大文字小文字だけが異なる名前は同じファイルとして扱われる
+            assertEquals(16, new FatImageBuilder(16 * 1024 * 1024, 1).add("/a.bin", a)
+                    .add("/B.BIN", random(5000, 5)).add("/DATA/C.BIN", random(3001, 3))
+                    .add("/E.BIN", random(10, 6)).write(overlay.getChannel()));
+
+            final List<Change> changes = OverlayAnalyzer.analyze(new FatImage(base.getChannel(),
+                    base.length()), new FatImage(overlay.getChannel(), overlay.length()), 2);
+            assertEquals(5, changes.size());
+            assertChange(Kind.IDENTICAL, "/a.bin", 1000, 1000, changes.get(0));
+            assertChange(Kind.REPLACED, "/B.BIN", 5000, 5000, changes.get(1));
+            assertChange(Kind.REPLACED, "/DATA/C.BIN", 3000, 3001, changes.get(2));
+            assertChange(Kind.UNTOUCHED, "/DATA/D.BIN", 700, -1, changes.get(3));
+            assertChange(Kind.ADDED, "/E.BIN", -1, 10, changes.get(4));
+        } finally {
+            base.close();
+            overlay.close();
+        }
+    }
+
+    @Test(expected = InvalidImageException.class)
+    public void 異常_FATではない() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile("files_for_test/only_obb_info", "r");
+        try {
+            new FatImage(file.getChannel(), file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void 正常_listFiles_ロケールに依存しない() throws Exception {
+        final Locale defaultLocale = Locale.getDefault();
+        final RandomAccessFile file = new RandomAccessFile(base_, "rw");
+        try {
+            new FatImageBuilder(1024 * 1024, 1).add("/DATA/index.bin", random(10, 1))
+                    .write(file.getChannel());
+            // トルコ語のロケールでは "I" の小文字が "ı" になる
+            Locale.setDefault(new Locale("tr", "TR"));
+            final List<Entry> entries = new FatImage(file.getChannel(), file.length())
+                    .listFiles();
+            assertEquals(1, entries.size());
+            assertEquals("/DATA/index.bin", entries.get(0).getPath());
+        } finally {
+            Locale.setDefault(defaultLocale);
+            file.close();
+        }
+    }
+
+    @Test
+    public void 異常_listFiles_ディレクトリの循環() throws Exception {
+        final RandomAccessFile file = new RandomAccessFile(base_, "rw");
+        try {
+            new FatImageBuilder(1024 * 1024, 1).add("/DIR/A.BIN", random(10, 1))
+                    .add("/DIR/B.BIN", random(10, 2)).write(file.getChannel());
+            // DIR 中の 2 つのファイルを、どちらも DIR 自身を指すディレクトリに書き換える
+            final byte[] image = new byte[(int) file.length()];
+            file.readFully(image);
+            final int dirCluster = (image[indexOf(image, "DIR        ") + 26] & 0xff);
+            for (String name : new String[] {
+                    "A       BIN", "B       BIN"
+            }) {
+                final int offset = indexOf(image, name);
+                file.seek(offset + 11);
+                file.write(0x10);
+                file.seek(offset + 26);
+                file.write(dirCluster);
+            }
+
+            try {
+                new FatImage(file.getChannel(), file.length()).listFiles();
+                fail();
+            } catch (InvalidImageException e) {
+                assertEquals("directory visited twice: /DIR/A.BIN", e.getMessage());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int indexOf(byte[] image, String name) throws Exception {
+        final byte[] raw = name.getBytes("US-ASCII");
+        for (int offset = 0; offset + raw.length <= image.length; offset += 32) {
+            if (Arrays.equals(raw, Arrays.copyOfRange(image, offset, offset + raw.length))) {
+                return offset;
+            }
+        }
+        throw new AssertionError("entry not found: " + name);
+    }
+
+    private static void assertChange(Kind kind, String path, long baseSize, long overlaySize,
+            Change actual) {
+        assertEquals(kind, actual.getKind());
+        assertEquals(path, actual.getPath());
+        assertEquals(baseSize, actual.getBaseSize());
+        assertEquals(overlaySize, actual.getOverlaySize());
+    }
+
+    private static byte[] random(int size, long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
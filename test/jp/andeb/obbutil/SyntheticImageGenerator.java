@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * 任意のサイズのディスクイメージを一時ディレクトリ上にスパースファイルとして作成します。
+ * <p>
+ * 実際にディスクを消費するのはメタデータと格納したファイルの内容だけなので、数 GB のイメージでも
+ * 一瞬で作成できます。作成したイメージは {@link #close()} でまとめて削除します。
+ */
+final class SyntheticImageGenerator {
+
+    enum Format {
+        /** 先頭から末尾まで 0 のイメージ。 */
+        RAW,
+        /** FAT でフォーマットし、いくつかのファイルを格納したイメージ。 */
+        FAT
+    }
+
+    /** FAT イメージに格納するファイル 1 つあたりのサイズ。 */
+    static final int FILE_SIZE = 4096;
+
+    /** FAT のクラスタ数の上限。FAT をメモリ上に組み立てるため、大きくなりすぎないようにする。 */
+    private static final long MAX_CLUSTERS = 1L << 20;
+
+    private final File dir_;
+
+    private int count_;
+
+    SyntheticImageGenerator() throws IOException {
+        dir_ = TestFiles.createTempDir("synthetic");
+    }
+
+    /**
+     * イメージを作成します。
+     *
+     * @param format イメージの形式。
+     * @param size イメージのバイト数。{@link Format#FAT} の場合は 512 の倍数に切り捨てられます。
+     * @param fileCount {@link Format#FAT} の場合に格納するファイルの数。
+     * @return 作成したファイル。
+     * @throws IOException 作成に失敗した場合。
+     */
+    File create(Format format, long size, int fileCount) throws IOException {
+        final File file = new File(dir_, "image" + (count_++) + ".img");
+        final RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            if (format == Format.RAW) {
+                raFile.setLength(size);
+            } else {
+                createFat(raFile, size, fileCount);
+            }
+        } finally {
+            raFile.close();
+        }
+        return file;
+    }
+
+    private static void createFat(RandomAccessFile raFile, long size, int fileCount)
+            throws IOException {
+        for (int sectorsPerCluster = 1; sectorsPerCluster <= 128; sectorsPerCluster *= 2) {
+            if (MAX_CLUSTERS < size / 512 / sectorsPerCluster) {
+                continue;
+            }
+            final FatImageBuilder builder = new FatImageBuilder(size, sectorsPerCluster);
+            for (int index = 0; index < fileCount; index++) {
+                builder.add(filePath(index), fileContents(index));
+            }
+            try {
+                builder.write(raFile.getChannel());
+                return;
+            } catch (IllegalArgumentException e) {
+                // FAT の種類の境界に近いか容量が足りない。クラスタサイズを変えて再試行する
+            }
+        }
+        throw new IllegalArgumentException("cannot format " + size + " bytes image.");
+    }
+
+    /** {@link Format#FAT} のイメージに格納される {@code index} 番目のファイルのパス。 */
+    static String filePath(int index) {
+        return String.format("/DIR%d/F%05d.BIN", Integer.valueOf(index / 100),
+                Integer.valueOf(index));
+    }
+
+    /** {@link Format#FAT} のイメージに格納される {@code index} 番目のファイルの内容。 */
+    static byte[] fileContents(int index) {
+        final byte[] contents = new byte[FILE_SIZE];
+        new Random(index).nextBytes(contents);
+        return contents;
+    }
+
+    /**
+     * UTF-8 でちょうど {@code size} バイトになるパッケージ名を返します。3 バイト文字を含みます。
+     *
+     * @param size バイト数。3 以上であること。
+     */
+    static String packageNameOfSize(int size) {
+        final StringBuilder sb = new StringBuilder("jp.");
+        while (sb.length() < size % 3 + 3) {
+            sb.append('a');
+        }
+        for (int remaining = size - sb.length(); 0 < remaining; remaining -= 3) {
+            sb.append('あ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 作成したイメージとディレクトリを削除します。
+     */
+    void close() {
+        TestFiles.delete(dir_);
+    }
+}
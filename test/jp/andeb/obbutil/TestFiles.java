@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+/**
+ * テストで使用するファイル操作のユーティリティです。
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * 一時ディレクトリ上に空のディレクトリを作成します。使用後は {@link #delete(File)} で削除すること。
+     */
+    static File createTempDir(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("failed to create directory: " + dir.getPath());
+        }
+        return dir;
+    }
+
+    /**
+     * ファイルの内容を {@code contents} で置き換えます。
+     *
+     * @return {@code file}。
+     */
+    static File write(File file, byte[] contents) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * ファイルのサイズを {@code size} バイトに変更します。ファイルが無い場合は作成します。
+     *
+     * @return {@code file}。
+     */
+    static File setLength(File file, long size) throws IOException {
+        final RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            raFile.setLength(size);
+        } finally {
+            raFile.close();
+        }
+        return file;
+    }
+
+    static byte[] read(File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int total = 0;
+            int len;
+            while (total < bytes.length
+                    && 0 < (len = in.read(bytes, total, bytes.length - total))) {
+                total += len;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * ファイルを削除します。ディレクトリの場合は中身ごと削除します。
+     */
+    static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 標準エラー出力への出力を捨てるようにします。
+     *
+     * @return 元の標準エラー出力。戻す場合は {@link System#setErr(PrintStream)} に渡すこと。
+     */
+    static PrintStream discardErr() {
+        final PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        return err;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011 Android DEvelopers' cluB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.andeb.obbutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import jp.andeb.obbutil.VolumeSplitter.VerificationException;
+
+public class VolumeSplitterTest {
+
+    private static final int IMAGE_SIZE = 10000;
+
+    private File dir_;
+
+    private File source_;
+
+    private byte[] contents_;
+
+    @Before
+    public void setUp() throws Exception {
+        dir_ = TestFiles.createTempDir("split");
+        source_ = new File(dir_, "main.obb");
+
+        final byte[] image = new byte[IMAGE_SIZE];
+        new Random(0).nextBytes(image);
+        final byte[] footer = new ObbInfoV1(0, null, "jp.andeb.obbutil", 3).toBytes().array();
+        contents_ = Arrays.copyOf(image, image.length + footer.length);
+        System.arraycopy(footer, 0, contents_, image.length, footer.length);
+        TestFiles.write(source_, contents_);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFiles.delete(dir_);
+    }
+
+    @Test
+    public void 正常_split_join() throws Exception {
+        final File manifest = VolumeSplitter.split(source_, 4096, 2);
+        assertEquals(new File(dir_, "main.obb.sha256"), manifest);
+        assertEquals(4096, VolumeSplitter.partFile(source_, 0).length());
+        assertEquals(4096, VolumeSplitter.partFile(source_, 1).length());
+        assertEquals(contents_.length - 8192, VolumeSplitter.partFile(source_, 2).length());
+        assertFalse(VolumeSplitter.partFile(source_, 3).exists());
+
+        final File joined = new File(dir_, "joined.obb");
+        final ObbInfo info = VolumeSplitter.join(manifest, joined, 2);
+        assertEquals("jp.andeb.obbutil", info.getPackageName());
+        assertEquals(3, info.getPackageVersion());
+        assertTrue(Arrays.equals(contents_, TestFiles.read(joined)));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void 異常_join_パートが壊れている() throws Exception {
+        final File manifest = VolumeSplitter.split(source_, 4096, 2);
+        final RandomAccessFile part = new RandomAccessFile(VolumeSplitter.partFile(source_, 1),
+                "rw");
+        try {
+            part.write(~contents_[4096]);
+        } finally {
+            part.close();
+        }
+        VolumeSplitter.join(manifest, new File(dir_, "joined.obb"), 2);
+    }
+
+    @Test
+    public void 異常_join_OBB情報が無い場合は出力を削除() throws Exception {
+        final File raw = TestFiles.setLength(new File(dir_, "raw.img"), IMAGE_SIZE);
+        final File manifest = VolumeSplitter.split(raw, 4096, 2);
+        final File joined = new File(dir_, "joined.obb");
+        try {
+            VolumeSplitter.join(manifest, joined, 2);
+            fail();
+        } catch (FooterCodec.NotObbException e) {
+            assertFalse(joined.exists());
+        }
+    }
+
+    @Test
+    public void 異常_join_出力先が既に存在する() throws Exception {
+        final File manifest = VolumeSplitter.split(source_, 4096, 2);
+        final File joined = new File(dir_, "joined.obb");
+        joined.createNewFile();
+        try {
+            VolumeSplitter.join(manifest, joined, 2);
+            fail();
+        } catch (IOException e) {
+            // 既存のファイルは削除しない
+            assertTrue(joined.exists());
+            assertEquals(0, joined.length());
+        }
+    }
+
+    @Test
+    public void 異常_join_パート名にディレクトリを含む() throws Exception {
+        final File manifest = VolumeSplitter.split(source_, 4096, 2);
+        for (String name : new String[] {
+                "../main.obb.001", "sub/main.obb.001", "sub\\main.obb.001", ".."
+        }) {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+            try {
+                out.write("0000  " + name + "\n");
+            } finally {
+                out.close();
+            }
+            try {
+                VolumeSplitter.join(manifest, new File(dir_, "joined.obb"), 2);
+                fail(name);
+            } catch (VerificationException e) {
+                assertEquals("invalid part name: " + name, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void 異常_split_パートが多すぎる() throws Exception {
+        try {
+            VolumeSplitter.split(source_, 10, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertFalse(VolumeSplitter.partFile(source_, 0).exists());
+        }
+        // ちょうど上限の数のパートには分割できる
+        final File raw = TestFiles.setLength(new File(dir_, "raw.img"),
+                VolumeSplitter.MAX_PART_COUNT * 10);
+        VolumeSplitter.split(raw, 10, 2);
+        assertTrue(VolumeSplitter.partFile(raw, VolumeSplitter.MAX_PART_COUNT - 1).exists());
+        assertFalse(VolumeSplitter.partFile(raw, VolumeSplitter.MAX_PART_COUNT).exists());
+    }
+
+    @Test
+    public void 正常_getPartCount() throws Exception {
+        assertEquals(1, VolumeSplitter.getPartCount(0, 10));
+        assertEquals(1, VolumeSplitter.getPartCount(10, 10));
+        assertEquals(2, VolumeSplitter.getPartCount(11, 10));
+        assertEquals(VolumeSplitter.MAX_PART_COUNT + 1,
+                VolumeSplitter.getPartCount(VolumeSplitter.MAX_PART_COUNT * 10 + 1, 10));
+    }
+
+    @Test
+    public void 正常_partFile_ロケールに依存しない() throws Exception {
+        final Locale defaultLocale = Locale.getDefault();
+        // アラビア数字以外の数字を使用するロケール
+        Locale.setDefault(new Locale("ar", "EG"));
+        try {
+            assertEquals("main.obb.012", VolumeSplitter.partFile(source_, 11).getName());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void 異常_split_失敗した場合は書きかけのファイルを削除() throws Exception {
+        // 2 つ目のパートと同名のディレクトリがあるため書き込めない
+        final File blocker = VolumeSplitter.partFile(source_, 1);
+        blocker.mkdir();
+        try {
+            VolumeSplitter.split(source_, 4096, 2);
+            fail();
+        } catch (IOException e) {
+            assertFalse(VolumeSplitter.partFile(source_, 0).exists());
+            assertFalse(VolumeSplitter.partFile(source_, 2).exists());
+            assertFalse(new File(source_.getPath() + VolumeSplitter.MANIFEST_SUFFIX).exists());
+        } finally {
+            blocker.delete();
+        }
+    }
+}